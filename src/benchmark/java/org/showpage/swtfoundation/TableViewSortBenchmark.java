@@ -0,0 +1,203 @@
+package org.showpage.swtfoundation;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Shell;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Before/after benchmark for sorting a TableView, the way clicking a
+ * column header does.  We sort the same rows twice: once on a column that
+ * fetches its values with Method.invoke(), the way TableViewColumn used
+ * to, and once on the same column with its compiled accessor.  Both sorts
+ * must leave the rows in the same order.
+ *
+ * This needs a display, takes a while, and prints its timings rather than
+ * asserting them, so it isn't part of the normal test run.  Run it with
+ * ./gradlew benchmark.  Each sort runs a few times so the JIT has warmed
+ * up, and we report the fastest.  Set -Dswtfoundation.sortRows to try
+ * other sizes.
+ */
+public class TableViewSortBenchmark {
+	private static final int	ROWS = Integer.getInteger("swtfoundation.sortRows", 1000000);
+	private static final int	PASSES = 3;
+
+	private static Display		display;
+	private static Shell		shell;
+
+	/**
+	 * One row of the table.
+	 */
+	public static class Row {
+		public double	price;
+		public String	symbol;
+		public int		volume;
+
+		public Row(double _price, String _symbol, int _volume) {
+			price = _price;
+			symbol = _symbol;
+			volume = _volume;
+		}
+
+		public double getPrice() { return price; }
+	}
+
+	/**
+	 * Stands in for the window that holds a table whose getters live on
+	 * the window rather than on the rows.
+	 */
+	public static class Controller {
+		public String symbolFor(Row row) { return row.symbol; }
+	}
+
+	/**
+	 * A column that gets its values the way TableViewColumn used to: with
+	 * reflection, boxed, on every call.
+	 */
+	private static class ReflectionColumn extends TableViewColumn {
+		ReflectionColumn(String _header, String _name) {
+			super(_header, _name, Row.class);
+			keyType = KEY_OBJECT;
+		}
+
+		ReflectionColumn(String _header, String _name, Object _object) {
+			super(_header, _name, _object, _object.getClass(), Row.class);
+			keyType = KEY_OBJECT;
+		}
+
+		public Object getValue(Object from) {
+			try {
+				if (getter == null) {
+					return field.get(from);
+				}
+				return (getterObject == null) ? getter.invoke(from) : getter.invoke(getterObject, from);
+			}
+			catch (IllegalAccessException | InvocationTargetException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	@BeforeClass
+	public static void openShell() {
+		display = Display.getDefault();
+		shell = new Shell(display);
+	}
+
+	@AfterClass
+	public static void closeShell() {
+		shell.dispose();
+	}
+
+	/**
+	 * Sort 1M rows on a double getter, old way and new way.
+	 */
+	@Test
+	public void sortMillionRowsByGetter() throws Exception {
+		Row[] rows = makeRows(ROWS);
+		TableViewColumn column = new TableViewColumn("Price", "price", Row.class);
+		assertNotNull(column.getter);
+
+		compareSorts("getter", rows, new ReflectionColumn("Price", "price"), column);
+	}
+
+	/**
+	 * Sort on a getter that lives on a controller object, as with the
+	 * getterObject constructor.
+	 */
+	@Test
+	public void sortByControllerGetter() throws Exception {
+		Row[] rows = makeRows(ROWS / 10);
+		Controller controller = new Controller();
+		TableViewColumn column = new TableViewColumn("Symbol", "symbolFor", controller, Controller.class, Row.class);
+		assertNotNull(column.getter);
+
+		compareSorts("controller", rows, new ReflectionColumn("Symbol", "symbolFor", controller), column);
+	}
+
+	/**
+	 * Sort on a public int field with no getter.
+	 */
+	@Test
+	public void sortByField() throws Exception {
+		Row[] rows = makeRows(ROWS / 10);
+		TableViewColumn column = new TableViewColumn("Volume", "volume", Row.class);
+		assertNotNull(column.field);
+
+		compareSorts("field", rows, new ReflectionColumn("Volume", "volume"), column);
+	}
+
+	/**
+	 * Build some rows.  The seed is fixed so runs can be compared.
+	 *
+	 * @param count		How many rows
+	 * @return The rows.
+	 */
+	private static Row[] makeRows(int count) {
+		Random random = new Random(42);
+		Row[] rows = new Row[count];
+		for (int index = 0; index < count; ++index) {
+			rows[index] = new Row(random.nextDouble() * 1000.0, "S" + random.nextInt(count), random.nextInt(1000));
+		}
+		return rows;
+	}
+
+	/**
+	 * Time sorting on a column with reflection and then compiled, and
+	 * check both come out the same.
+	 *
+	 * @param what			What we're sorting on, for the report
+	 * @param rows			The rows
+	 * @param reflected		The column, the old way
+	 * @param column		The column, compiled
+	 */
+	private static void compareSorts(String what, Row[] rows, TableViewColumn reflected, TableViewColumn column) {
+		List<Object> before = timeSort("Method.invoke (" + what + ")", rows, reflected);
+		List<Object> after = timeSort("TableViewColumn (" + what + ")", rows, column);
+		assertEquals(before.size(), after.size());
+		for (int index = 0; index < before.size(); ++index) {
+			if (before.get(index) != after.get(index)) {
+				fail("Sorts differ at row " + index);
+			}
+		}
+	}
+
+	/**
+	 * Load the rows into a TableView and sort it on this column PASSES
+	 * times, printing the best time.  Each pass starts from the rows
+	 * sorted on another column, so every pass does the same work.
+	 *
+	 * @param label		What we're timing
+	 * @param rows		The rows
+	 * @param column	The column to sort on
+	 * @return The rows in the order the last sort left them.
+	 */
+	private static List<Object> timeSort(String label, Row[] rows, TableViewColumn column) {
+		TableViewColumn other = new TableViewColumn("Other", "volume", Row.class);
+		Vector<TableViewColumn> columns = new Vector<TableViewColumn>();
+		columns.add(other);
+		columns.add(column);
+		TableView view = new TableView(shell, columns);
+		view.asyncSortThreshold = 0;
+		view.addData(Arrays.asList(rows));
+
+		long best = Long.MAX_VALUE;
+		for (int pass = 0; pass < PASSES; ++pass) {
+			view.setSortColumns(Collections.singletonList(other));
+			long start = System.nanoTime();
+			view.setSortColumns(Collections.singletonList(column));
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		System.out.printf("%-34s %,d rows: %,d ms\n", label, rows.length, best / 1000000);
+
+		List<Object> sorted = new ArrayList<Object>(view.data);
+		view.table.dispose();
+		return sorted;
+	}
+}
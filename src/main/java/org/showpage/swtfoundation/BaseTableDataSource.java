@@ -0,0 +1,77 @@
+package org.showpage.swtfoundation;
+
+import java.util.*;
+
+/**
+ * BaseTableDataSource provides the listener bookkeeping for an
+ * ITableDataSource.  Subclasses implement size() and get() and call the
+ * fire methods when their rows change.
+ */
+public abstract class BaseTableDataSource implements ITableDataSource {
+	private ArrayList<ITableDataSourceListener>	listeners = new ArrayList<ITableDataSourceListener>();
+
+	/**
+	 * Start telling this listener about changes.
+	 * 
+	 * @param listener	Probably a TableView.
+	 */
+	public void addListener(ITableDataSourceListener listener) {
+		if (!listeners.contains(listener)) {
+			listeners.add(listener);
+		}
+	}
+
+	/**
+	 * Stop telling this listener about changes.
+	 * 
+	 * @param listener	Probably a TableView.
+	 */
+	public void removeListener(ITableDataSourceListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Tell our listeners these rows changed.
+	 * 
+	 * @param from	First row that changed
+	 * @param count	How many rows changed
+	 */
+	protected void fireRowsChanged(int from, int count) {
+		for (ITableDataSourceListener listener : new ArrayList<ITableDataSourceListener>(listeners)) {
+			listener.rowsChanged(this, from, count);
+		}
+	}
+
+	/**
+	 * Tell our listeners rows were inserted.
+	 * 
+	 * @param from	Index of the first new row
+	 * @param count	How many rows were inserted
+	 */
+	protected void fireRowsInserted(int from, int count) {
+		for (ITableDataSourceListener listener : new ArrayList<ITableDataSourceListener>(listeners)) {
+			listener.rowsInserted(this, from, count);
+		}
+	}
+
+	/**
+	 * Tell our listeners rows were removed.
+	 * 
+	 * @param from	Index the first removed row used to have
+	 * @param count	How many rows were removed
+	 */
+	protected void fireRowsRemoved(int from, int count) {
+		for (ITableDataSourceListener listener : new ArrayList<ITableDataSourceListener>(listeners)) {
+			listener.rowsRemoved(this, from, count);
+		}
+	}
+
+	/**
+	 * Tell our listeners everything may have changed.
+	 */
+	protected void fireDataReset() {
+		for (ITableDataSourceListener listener : new ArrayList<ITableDataSourceListener>(listeners)) {
+			listener.dataReset(this);
+		}
+	}
+}
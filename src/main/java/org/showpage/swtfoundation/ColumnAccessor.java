@@ -0,0 +1,367 @@
+package org.showpage.swtfoundation;
+
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+import java.util.function.*;
+
+/**
+ * This class is used by TableViewColumn to turn a reflected getter, field
+ * or formatter into something cheap to call.  We try, in order:
+ *
+ *   1. A Function generated with LambdaMetafactory, which the JIT can
+ *      inline just like a hand-written lambda.
+ *   2. A MethodHandle adapted to (Object)Object.
+ *   3. Plain reflection, which is what we always used to do.
+ *
+ * An accessor remembers the getter, field and object it was built from,
+ * so TableViewColumn can tell when somebody has changed its public
+ * fields out from under it.
+ *
+ * If the getter or field is a primitive, we can also build unboxed
+ * versions for sorting, so an int column never allocates an Integer.
+ */
+class ColumnAccessor {
+	final Method					method;
+	final Object					target;
+	final Field						field;
+	final Class<?>					valueType;
+	final Function<Object,Object>	function;
+
+	private volatile ToLongFunction<Object>		longFunction;
+	private volatile ToDoubleFunction<Object>	doubleFunction;
+
+	/**
+	 * Build an accessor that calls a method.  If target is null, we call
+	 * from.method().  Otherwise we call target.method(from).
+	 * 
+	 * @param _method	The method to call
+	 * @param _target	The object to call it on, or null.
+	 */
+	ColumnAccessor(Method _method, Object _target) {
+		method = _method;
+		target = _target;
+		field = null;
+		valueType = _method.getReturnType();
+		function = compileMethod(_method, _target);
+	}
+
+	/**
+	 * Build an accessor that reads a field.
+	 * 
+	 * @param _field	The public field.
+	 */
+	ColumnAccessor(Field _field) {
+		method = null;
+		target = null;
+		field = _field;
+		valueType = _field.getType();
+		function = compileField(_field);
+	}
+
+	/**
+	 * Was this accessor built from these values?
+	 * 
+	 * @param _method	The method
+	 * @param _target	The object we call the method on
+	 * @param _field	The field
+	 * @return True if nothing has changed.
+	 */
+	boolean matches(Method _method, Object _target, Field _field) {
+		return method == _method && target == _target && field == _field;
+	}
+
+	/**
+	 * Return an unboxed accessor for a getter or field that returns an
+	 * integral primitive, char or boolean.  Booleans come back as 0 or 1.
+	 * 
+	 * @return The function, or null if we aren't that kind of primitive.
+	 */
+	ToLongFunction<Object> longFunction() {
+		if (longFunction == null && isPrimitive() && valueType != float.class && valueType != double.class) {
+			final MethodHandle handle = primitiveHandle(long.class);
+			if (handle != null) {
+				ToLongFunction<Object> fn = null;
+				if (method != null && valueType != boolean.class) {
+					fn = primitiveMetafactory(ToLongFunction.class, "applyAsLong", long.class);
+				}
+				if (fn == null) {
+					fn = new ToLongFunction<Object>() {
+						public long applyAsLong(Object from) {
+							try {
+								return (long) handle.invokeExact(from);
+							}
+							catch (RuntimeException | Error ex) {
+								throw ex;
+							}
+							catch (Throwable ex) {
+								throw new RuntimeException(ex);
+							}
+						}
+					};
+				}
+				longFunction = fn;
+			}
+		}
+		return longFunction;
+	}
+
+	/**
+	 * Return an unboxed accessor for a getter or field that returns a
+	 * numeric primitive.
+	 * 
+	 * @return The function, or null if we aren't a numeric primitive.
+	 */
+	ToDoubleFunction<Object> doubleFunction() {
+		if (doubleFunction == null && isPrimitive() && valueType != boolean.class) {
+			final MethodHandle handle = primitiveHandle(double.class);
+			if (handle != null) {
+				ToDoubleFunction<Object> fn = null;
+				if (method != null) {
+					fn = primitiveMetafactory(ToDoubleFunction.class, "applyAsDouble", double.class);
+				}
+				if (fn == null) {
+					fn = new ToDoubleFunction<Object>() {
+						public double applyAsDouble(Object from) {
+							try {
+								return (double) handle.invokeExact(from);
+							}
+							catch (RuntimeException | Error ex) {
+								throw ex;
+							}
+							catch (Throwable ex) {
+								throw new RuntimeException(ex);
+							}
+						}
+					};
+				}
+				doubleFunction = fn;
+			}
+		}
+		return doubleFunction;
+	}
+
+	/**
+	 * Do we read a primitive, in the shape an unboxed accessor can handle?
+	 * 
+	 * @return True if so.
+	 */
+	private boolean isPrimitive() {
+		if (!valueType.isPrimitive() || valueType == void.class) {
+			return false;
+		}
+		if (method != null) {
+			boolean isStatic = Modifier.isStatic(method.getModifiers());
+			int argCount = method.getParameterTypes().length;
+			return !isStatic && argCount == ((target == null) ? 0 : 1);
+		}
+		return !Modifier.isStatic(field.getModifiers());
+	}
+
+	/**
+	 * Build a MethodHandle of type (Object)returnType for our getter or field.
+	 * 
+	 * @param returnType	long.class or double.class
+	 * @return The handle, or null if that can't be done.
+	 */
+	private MethodHandle primitiveHandle(Class<?> returnType) {
+		try {
+			MethodHandle handle;
+			if (method != null) {
+				handle = MethodHandles.publicLookup().unreflect(method);
+				if (target != null) {
+					handle = handle.bindTo(target);
+				}
+			}
+			else {
+				handle = MethodHandles.publicLookup().unreflectGetter(field);
+			}
+			return MethodHandles.explicitCastArguments(handle, MethodType.methodType(returnType, Object.class));
+		}
+		catch (Throwable ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Spin up a ToLongFunction or ToDoubleFunction for our getter.
+	 * 
+	 * @param iface			ToLongFunction.class or ToDoubleFunction.class
+	 * @param samName		applyAsLong or applyAsDouble
+	 * @param returnType	long.class or double.class
+	 * @return The function, or null if LambdaMetafactory can't do it.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> T primitiveMetafactory(Class<?> iface, String samName, Class<?> returnType) {
+		try {
+			MethodType samType = MethodType.methodType(returnType, Object.class);
+			return (T) metafactory(method, target, iface, samName, samType, returnType);
+		}
+		catch (Throwable ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Compile a method call.
+	 * 
+	 * @param method	The method
+	 * @param target	Object to call it on, or null to call it on the argument.
+	 * @return A function.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Function<Object,Object> compileMethod(final Method method, final Object target) {
+		boolean isStatic = Modifier.isStatic(method.getModifiers());
+		int argCount = method.getParameterTypes().length;
+		boolean shapeOK = (target == null) ? (!isStatic && argCount == 0) : (!isStatic && argCount == 1);
+
+		if (shapeOK) {
+			try {
+				MethodType generic = MethodType.methodType(Object.class, Object.class);
+				return (Function<Object,Object>) metafactory(method, target, Function.class, "apply", generic, null);
+			}
+			catch (Throwable ex) {
+				// Fall through to the next approach.
+			}
+			try {
+				MethodHandle handle = MethodHandles.publicLookup().unreflect(method);
+				if (target != null) {
+					handle = handle.bindTo(target);
+				}
+				return fromHandle(handle.asType(MethodType.methodType(Object.class, Object.class)));
+			}
+			catch (Throwable ex) {
+				// Fall through to reflection.
+			}
+		}
+
+		return new Function<Object,Object>() {
+			public Object apply(Object from) {
+				try {
+					return (target != null) ? method.invoke(target, from) : method.invoke(from);
+				}
+				catch (Exception ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Compile a field read.
+	 * 
+	 * @param field		The field
+	 * @return A function.
+	 */
+	private static Function<Object,Object> compileField(final Field field) {
+		if (!Modifier.isStatic(field.getModifiers())) {
+			try {
+				MethodHandle handle = MethodHandles.publicLookup().unreflectGetter(field);
+				return fromHandle(handle.asType(MethodType.methodType(Object.class, Object.class)));
+			}
+			catch (Throwable ex) {
+				// Fall through to reflection.
+			}
+		}
+
+		return new Function<Object,Object>() {
+			public Object apply(Object from) {
+				try {
+					return field.get(from);
+				}
+				catch (Exception ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Spin up a real implementation of a functional interface for this
+	 * method.  This only works if the classes involved are visible from
+	 * our own class loader.
+	 * 
+	 * @param method		The method
+	 * @param target		Object to call it on, or null to call it on the argument.
+	 * @param iface			The functional interface
+	 * @param samName		Its method name
+	 * @param samType		Its method type, erased
+	 * @param returnType	What the method's result becomes, or null to box it.
+	 * @return An instance of iface.
+	 * @throws Throwable if LambdaMetafactory can't do it.
+	 */
+	private static Object metafactory(Method method, Object target, Class<?> iface, String samName,
+			MethodType samType, Class<?> returnType) throws Throwable {
+		for (Class<?> type : method.getParameterTypes()) {
+			checkVisible(type);
+		}
+		checkVisible(method.getDeclaringClass());
+		checkVisible(method.getReturnType());
+		if (method.getReturnType() == void.class) {
+			throw new IllegalArgumentException("void getter");
+		}
+
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		MethodHandle impl = lookup.unreflect(method);
+
+		if (target == null) {
+			MethodType instantiated = impl.type().wrap();
+			if (returnType != null) {
+				instantiated = impl.type().changeReturnType(returnType);
+			}
+			CallSite site = LambdaMetafactory.metafactory(lookup, samName,
+					MethodType.methodType(iface),
+					samType, impl, instantiated);
+			return site.getTarget().invoke();
+		}
+
+		MethodType instantiated = impl.type().dropParameterTypes(0, 1).wrap();
+		if (returnType != null) {
+			instantiated = instantiated.changeReturnType(returnType);
+		}
+		CallSite site = LambdaMetafactory.metafactory(lookup, samName,
+				MethodType.methodType(iface, method.getDeclaringClass()),
+				samType, impl, instantiated);
+		return site.getTarget().invoke(target);
+	}
+
+	/**
+	 * Make sure a class the generated code refers to is visible to us.
+	 * 
+	 * @param type	The class
+	 * @throws ClassNotFoundException if it's somewhere we can't see.
+	 */
+	private static void checkVisible(Class<?> type) throws ClassNotFoundException {
+		while (type.isArray()) {
+			type = type.getComponentType();
+		}
+		if (type.isPrimitive()) {
+			return;
+		}
+		Class<?> found = Class.forName(type.getName(), false, ColumnAccessor.class.getClassLoader());
+		if (found != type) {
+			throw new ClassNotFoundException(type.getName());
+		}
+	}
+
+	/**
+	 * Wrap a MethodHandle of type (Object)Object as a Function.
+	 * 
+	 * @param handle	The handle
+	 * @return A function.
+	 */
+	private static Function<Object,Object> fromHandle(final MethodHandle handle) {
+		return new Function<Object,Object>() {
+			public Object apply(Object from) {
+				try {
+					return handle.invokeExact(from);
+				}
+				catch (RuntimeException | Error ex) {
+					throw ex;
+				}
+				catch (Throwable ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,45 @@
+package org.showpage.swtfoundation;
+
+/**
+ * A source of rows for a TableView.  Normally TableView keeps its own copy
+ * of your objects in its data vector.  If you already have them in your own
+ * model -- or they don't exist as objects until asked for -- implement this
+ * instead and hand it to TableView.setDataSource().
+ *
+ * TableView only ever asks for the rows it needs to display, sort or
+ * filter.  When your rows change, tell your listeners.  Listeners must be
+ * told on the display thread.
+ *
+ * BaseTableDataSource takes care of the listener bookkeeping for you.
+ */
+public interface ITableDataSource {
+	/**
+	 * Return the number of rows.
+	 * 
+	 * @return The row count.
+	 */
+	public int size();
+	
+	/**
+	 * Return one row.  The object is handed to each TableViewColumn,
+	 * exactly as if it were in TableView.data.
+	 * 
+	 * @param index	Row index, 0 through size() - 1.
+	 * @return The object for this row.
+	 */
+	public Object get(int index);
+	
+	/**
+	 * Start telling this listener about changes.
+	 * 
+	 * @param listener	Probably a TableView.
+	 */
+	public void addListener(ITableDataSourceListener listener);
+	
+	/**
+	 * Stop telling this listener about changes.
+	 * 
+	 * @param listener	Probably a TableView.
+	 */
+	public void removeListener(ITableDataSourceListener listener);
+}
@@ -0,0 +1,41 @@
+package org.showpage.swtfoundation;
+
+/**
+ * Defines the callbacks an ITableDataSource makes when its rows change.
+ * Row indices are the source's own, before any sorting.
+ */
+public interface ITableDataSourceListener {
+	/**
+	 * The values in these rows have changed, but no rows moved.
+	 * 
+	 * @param source	Who's telling us
+	 * @param from		First row that changed
+	 * @param count		How many rows changed
+	 */
+	public void rowsChanged(ITableDataSource source, int from, int count);
+	
+	/**
+	 * New rows were inserted.
+	 * 
+	 * @param source	Who's telling us
+	 * @param from		Index of the first new row
+	 * @param count		How many rows were inserted
+	 */
+	public void rowsInserted(ITableDataSource source, int from, int count);
+	
+	/**
+	 * Rows were removed.
+	 * 
+	 * @param source	Who's telling us
+	 * @param from		Index the first removed row used to have
+	 * @param count		How many rows were removed
+	 */
+	public void rowsRemoved(ITableDataSource source, int from, int count);
+	
+	/**
+	 * Everything may have changed.  Start over.
+	 * 
+	 * @param source	Who's telling us
+	 */
+	public void dataReset(ITableDataSource source);
+}
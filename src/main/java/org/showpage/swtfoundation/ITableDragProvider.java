@@ -0,0 +1,23 @@
+package org.showpage.swtfoundation;
+
+import java.util.*;
+
+import org.eclipse.swt.dnd.*;
+
+/**
+ * Lets you decide what TableView hands a drop target.  Nothing is asked
+ * for until the drop target wants it, and then only in the one format it
+ * wants, so a big drag costs nothing unless it's dropped somewhere.
+ */
+public interface ITableDragProvider {
+	/**
+	 * Return the data for these rows in this transfer's format.
+	 * 
+	 * @param transfer	The format the drop target asked for
+	 * @param rows		The rows being dragged, in display order
+	 * @return The data, as the transfer expects it, or null.  For a
+	 *			TextTransfer, null gets TableView's tab-separated text.
+	 *			For anything else, null refuses the drop.
+	 */
+	public Object dragData(Transfer transfer, List<Object> rows);
+}
@@ -0,0 +1,26 @@
+package org.showpage.swtfoundation;
+
+/**
+ * Defines the callbacks made while TableView exports its rows.  Both are
+ * made on the display thread.
+ */
+public interface ITableExportListener {
+	/**
+	 * Some rows have been written.  This is called now and then, not for
+	 * every row.
+	 * 
+	 * @param export	The export in progress
+	 * @param written	How many rows have been written so far
+	 * @param total		How many rows there are to write
+	 */
+	public void exportProgress(TableExport export, int written, int total);
+	
+	/**
+	 * The export is over.  It finished, was cancelled, or failed.
+	 * 
+	 * @param export	The export
+	 * @param error		What went wrong, or null if nothing did.  Check
+	 *					export.isCancelled() to see if it was cancelled.
+	 */
+	public void exportFinished(TableExport export, Exception error);
+}
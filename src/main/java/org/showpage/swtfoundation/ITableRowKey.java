@@ -0,0 +1,19 @@
+package org.showpage.swtfoundation;
+
+/**
+ * Tells TableView which row an object belongs in.  Use this when your
+ * rows are immutable and every update arrives as a new object: give
+ * TableView.setRowKey() one of these, and a new object with the same key
+ * as a row we already have replaces it in place rather than being added
+ * as another row.
+ */
+public interface ITableRowKey {
+	/**
+	 * Return the key for this row.  Keys are compared with equals(), so
+	 * they need a hashCode() to match.
+	 *
+	 * @param row	The row
+	 * @return Its key, the same for every version of the row.
+	 */
+	public Object rowKey(Object row);
+}
@@ -21,4 +21,26 @@ public interface ITableViewUser {
 	 *  @return Color to use
 	 */
 	public Color foregroundColorForRow(Object object);
+	
+	/**
+	 * Return true if TableView may remember each row's colors rather than
+	 * asking every time the row is displayed.  Cached colors are thrown
+	 * away when the row's object changes, when rowColorsVersion() changes,
+	 * or when you call TableView.invalidateRowColors().
+	 * 
+	 * @return True to cache colors.  The default is false.
+	 */
+	public default boolean cacheRowColors() {
+		return false;
+	}
+	
+	/**
+	 * If cacheRowColors() is true, bump this whenever the rules behind your
+	 * colors change, and every cached color is recomputed.
+	 * 
+	 * @return A number that changes when your color rules do.
+	 */
+	public default int rowColorsVersion() {
+		return 0;
+	}
 }
@@ -0,0 +1,171 @@
+package org.showpage.swtfoundation;
+
+import java.util.*;
+
+import org.eclipse.swt.widgets.*;
+
+/**
+ * A data source for log and event viewers: it holds the newest rows of a
+ * stream, up to a fixed capacity, oldest first.  Once it's full, every
+ * new row pushes the oldest one out.
+ *
+ * Rows live in a circular array, so appending is O(1) and memory stays
+ * the same however long the stream runs.  append() may be called from
+ * any thread.  New rows wait in a pending list -- which is never allowed
+ * to grow past our capacity either -- and are moved into the table on the
+ * display thread at most once per flushInterval.  Each move tells our
+ * listeners about everything evicted and everything added in one go.
+ *
+ * Turn on TableView.autoScroll to keep the newest row in view.
+ */
+public class RingBufferDataSource extends BaseTableDataSource {
+	/** Pending rows are moved into the table at most this often, in milliseconds. */
+	public int					flushInterval = 16;
+
+	private final Display		display;
+	private final Object[]		rows;
+	private int					head = 0;
+	private int					size = 0;
+	private ArrayDeque<Object>	pending = new ArrayDeque<Object>();
+	private boolean				flushScheduled = false;
+	private long				lastFlush = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param _display		The display our tables are on
+	 * @param capacity		The most rows we keep
+	 */
+	public RingBufferDataSource(Display _display, int capacity) {
+		display = _display;
+		rows = new Object[Math.max(1, capacity)];
+	}
+
+	/**
+	 * Return the most rows we keep.
+	 *
+	 * @return The capacity.
+	 */
+	public int capacity() {
+		return rows.length;
+	}
+
+	/**
+	 * Return the number of rows.  Rows still pending don't count yet.
+	 *
+	 * @return The row count.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Return one row.
+	 *
+	 * @param index	Row index, 0 for the oldest.
+	 * @return The object for this row.
+	 */
+	public Object get(int index) {
+		int slot = head + index;
+		return rows[(slot < rows.length) ? slot : slot - rows.length];
+	}
+
+	/**
+	 * Add a row to the end of the stream.  Safe to call from any thread.
+	 *
+	 * @param obj	The new row
+	 */
+	public void append(Object obj) {
+		boolean schedule;
+		synchronized (pending) {
+			if (pending.size() == rows.length) {
+				// It would be evicted by the time it was shown.
+				pending.removeFirst();
+			}
+			pending.addLast(obj);
+			schedule = !flushScheduled;
+			flushScheduled = true;
+		}
+		if (schedule && !display.isDisposed()) {
+			display.asyncExec(flushLater);
+		}
+	}
+
+	/**
+	 * Add these rows to the end of the stream.  Safe to call from any thread.
+	 *
+	 * @param objs	The new rows, oldest first
+	 */
+	public void appendAll(Collection<?> objs) {
+		for (Object obj : objs) {
+			append(obj);
+		}
+	}
+
+	/**
+	 * Move everything pending into the table now.  Call this on the
+	 * display thread.
+	 */
+	public void flush() {
+		Object[] batch;
+		synchronized (pending) {
+			batch = pending.toArray();
+			pending.clear();
+			flushScheduled = false;
+		}
+		lastFlush = System.currentTimeMillis();
+		if (batch.length == 0) {
+			return;
+		}
+
+		// Make room first.  There's never more pending than we can hold, so
+		// we never need to evict more than we've got.
+		int evicted = Math.max(0, size + batch.length - rows.length);
+		if (evicted > 0) {
+			head = (head + evicted) % rows.length;
+			size -= evicted;
+			fireRowsRemoved(0, evicted);
+		}
+		int slot = (head + size) % rows.length;
+		for (Object obj : batch) {
+			rows[slot] = obj;
+			if (++slot == rows.length) {
+				slot = 0;
+			}
+		}
+		size += batch.length;
+		fireRowsInserted(size - batch.length, batch.length);
+	}
+
+	/**
+	 * Throw away every row, including those still pending.  Call this on
+	 * the display thread.
+	 */
+	public void clear() {
+		synchronized (pending) {
+			pending.clear();
+		}
+		Arrays.fill(rows, null);
+		head = 0;
+		size = 0;
+		fireDataReset();
+	}
+
+	/**
+	 * Runs on the display thread to flush pending rows.  If we flushed
+	 * less than a frame ago, wait for the rest of the frame.
+	 */
+	private final Runnable flushLater = new Runnable() {
+		public void run() {
+			if (display.isDisposed()) {
+				return;
+			}
+			long wait = lastFlush + flushInterval - System.currentTimeMillis();
+			if (wait > 0) {
+				display.timerExec((int) wait, this);
+				return;
+			}
+			flush();
+		}
+	};
+}
@@ -0,0 +1,100 @@
+package org.showpage.swtfoundation;
+
+import java.util.*;
+
+/**
+ * This class keeps a BitSet of rows lined up with the rows as they're
+ * inserted, removed and reordered.  TableView keeps two such sets: the
+ * rows matching the filter, and the rows selected.  Both are indexed
+ * the same way as TableView.snapshotRows().
+ */
+class RowBits {
+	/**
+	 * Rows were inserted.  Move the bits for the rows after them up.  The
+	 * new rows start out clear.
+	 *
+	 * @param bits	The bits
+	 * @param from	Index of the first new row
+	 * @param count	How many rows were inserted
+	 */
+	static void insert(BitSet bits, int from, int count) {
+		int length = bits.length();
+		if (from < length) {
+			BitSet tail = bits.get(from, length);
+			bits.clear(from, length);
+			for (int bit = tail.nextSetBit(0); bit >= 0; bit = tail.nextSetBit(bit + 1)) {
+				bits.set(from + count + bit);
+			}
+		}
+	}
+
+	/**
+	 * Rows were removed.  Move the bits for the rows after them down.
+	 *
+	 * @param bits	The bits
+	 * @param from	Index the first removed row used to have
+	 * @param count	How many rows were removed
+	 */
+	static void remove(BitSet bits, int from, int count) {
+		int length = bits.length();
+		if (from < length) {
+			BitSet tail = bits.get(Math.min(from + count, length), length);
+			bits.clear(from, length);
+			for (int bit = tail.nextSetBit(0); bit >= 0; bit = tail.nextSetBit(bit + 1)) {
+				bits.set(from + bit);
+			}
+		}
+	}
+
+	/**
+	 * All these rows were removed, and the rest closed up behind them.
+	 *
+	 * @param bits	The bits
+	 * @param rows	The rows removed
+	 */
+	static void removeRows(BitSet bits, BitSet rows) {
+		int first = rows.nextSetBit(0);
+		if (first < 0) {
+			return;
+		}
+		int length = bits.length();
+		int out = first;
+		for (int in = first; in < length; ++in) {
+			if (!rows.get(in)) {
+				bits.set(out++, bits.get(in));
+			}
+		}
+		bits.clear(out, Math.max(out, length));
+	}
+
+	/**
+	 * A row moved from one place to another, and the rows in between
+	 * shifted over to make room.
+	 *
+	 * @param bits	The bits
+	 * @param from	Where it was
+	 * @param to	Where it is now
+	 */
+	static void move(BitSet bits, int from, int to) {
+		boolean bit = bits.get(from);
+		remove(bits, from, 1);
+		insert(bits, to, 1);
+		bits.set(to, bit);
+	}
+
+	/**
+	 * The rows were put in a new order.
+	 *
+	 * @param bits		The bits
+	 * @param order		order[i] is where the row now at i used to be
+	 */
+	static void permute(BitSet bits, int[] order) {
+		BitSet old = (BitSet) bits.clone();
+		bits.clear();
+		for (int index = 0; index < order.length; ++index) {
+			if (old.get(order[index])) {
+				bits.set(index);
+			}
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package org.showpage.swtfoundation;
+
+import java.util.*;
+
+/**
+ * This class is used by TableView to note what happens to an
+ * ITableDataSource's rows while it works on them in the background.  The
+ * background result is indexed by source index as it was when we started,
+ * so when it comes back we replay the inserts and removes onto it rather
+ * than throw it away, and take another look at any row that's new or has
+ * changed since.
+ */
+class RowShifts {
+	private static final int	INSERTED = 0;
+	private static final int	REMOVED = 1;
+	private static final int	CHANGED = 2;
+
+	/** Each shift is { kind, from, count }, oldest first. */
+	private final ArrayList<int[]>	shifts = new ArrayList<int[]>();
+
+	/**
+	 * Rows were inserted.
+	 *
+	 * @param from	Index of the first new row
+	 * @param count	How many rows were inserted
+	 */
+	void inserted(int from, int count) {
+		shifts.add(new int[] { INSERTED, from, count });
+	}
+
+	/**
+	 * Rows were removed.
+	 *
+	 * @param from	Index the first removed row used to have
+	 * @param count	How many rows were removed
+	 */
+	void removed(int from, int count) {
+		shifts.add(new int[] { REMOVED, from, count });
+	}
+
+	/**
+	 * Rows have new values.
+	 *
+	 * @param from	First row that changed
+	 * @param count	How many rows changed
+	 */
+	void changed(int from, int count) {
+		shifts.add(new int[] { CHANGED, from, count });
+	}
+
+	/**
+	 * Has anything happened?
+	 *
+	 * @return True if not.
+	 */
+	boolean isEmpty() {
+		return shifts.isEmpty();
+	}
+
+	/**
+	 * Forget everything.
+	 */
+	void clear() {
+		shifts.clear();
+	}
+
+	/**
+	 * Bring a sort order up to date, the way TableView moves its own along
+	 * as rows come and go.  Rows removed are dropped, and new rows go on
+	 * the end.
+	 *
+	 * @param order		Source indices in display order, indexed the old way
+	 * @return The order, indexed the new way.
+	 */
+	int[] apply(int[] order) {
+		for (int[] shift : shifts) {
+			if (shift[0] == INSERTED) {
+				order = insert(order, shift[1], shift[2]);
+			}
+			else if (shift[0] == REMOVED) {
+				order = remove(order, shift[1], shift[2]);
+			}
+		}
+		return order;
+	}
+
+	/**
+	 * Rows were inserted.  Move the indices after them up, and put the new
+	 * rows on the end.
+	 *
+	 * @param order		Source indices in display order
+	 * @param from		Index of the first new row
+	 * @param count		How many rows were inserted
+	 * @return The new order.
+	 */
+	static int[] insert(int[] order, int from, int count) {
+		int[] result = new int[order.length + count];
+		for (int index = 0; index < order.length; ++index) {
+			int row = order[index];
+			result[index] = (row >= from) ? row + count : row;
+		}
+		for (int index = 0; index < count; ++index) {
+			result[order.length + index] = from + index;
+		}
+		return result;
+	}
+
+	/**
+	 * Rows were removed.  Drop them, and move the indices after them down.
+	 *
+	 * @param order		Source indices in display order
+	 * @param from		Index the first removed row used to have
+	 * @param count		How many rows were removed
+	 * @return The new order.
+	 */
+	static int[] remove(int[] order, int from, int count) {
+		int[] result = new int[order.length];
+		int out = 0;
+		for (int index = 0; index < order.length; ++index) {
+			int row = order[index];
+			if (row < from) {
+				result[out++] = row;
+			}
+			else if (row >= from + count) {
+				result[out++] = row - count;
+			}
+		}
+		return Arrays.copyOf(result, out);
+	}
+
+	/**
+	 * Bring per-row bits up to date.  Bits for rows that are still there
+	 * move along with them, and new rows start out clear.
+	 *
+	 * @param bits	The bits, indexed the old way.  Updated in place.
+	 * @return The rows that are new or have changed, indexed the new way.
+	 */
+	BitSet apply(BitSet bits) {
+		BitSet stale = new BitSet();
+		for (int[] shift : shifts) {
+			int from = shift[1];
+			int count = shift[2];
+			switch (shift[0]) {
+			case INSERTED:
+				RowBits.insert(bits, from, count);
+				RowBits.insert(stale, from, count);
+				stale.set(from, from + count);
+				break;
+			case REMOVED:
+				RowBits.remove(bits, from, count);
+				RowBits.remove(stale, from, count);
+				break;
+			default:
+				stale.set(from, from + count);
+				break;
+			}
+		}
+		return stale;
+	}
+}
@@ -0,0 +1,192 @@
+package org.showpage.swtfoundation;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A stable merge sort over row indices.  TableView uses this with
+ * SortKeys so that the expensive part of a comparison -- fetching the
+ * value -- has already been done.
+ */
+class RowSorter {
+	/** Ranges this small are insertion-sorted. */
+	private static final int	INSERTION_SORT_THRESHOLD = 16;
+
+	/** Ranges this small aren't worth splitting across threads. */
+	private static final int	PARALLEL_THRESHOLD = 8192;
+
+	/**
+	 * Compares two rows by index.
+	 */
+	interface IndexComparator {
+		/**
+		 * Compare two rows.
+		 * 
+		 * @param a		First row index
+		 * @param b		Second row index
+		 * @return Negative, zero or positive.
+		 */
+		int compare(int a, int b);
+	}
+
+	/**
+	 * Return the row indices 0..count-1 in sorted order.  Equal rows stay
+	 * in their original order.
+	 * 
+	 * @param comparator	How to compare rows
+	 * @param count			How many rows
+	 * @return order[i] is the original index of the row that belongs at i.
+	 */
+	static int[] sortedOrder(IndexComparator comparator, int count) {
+		int[] order = new int[count];
+		for (int index = 0; index < count; ++index) {
+			order[index] = index;
+		}
+		int[] scratch = order.clone();
+		mergeSort(scratch, order, 0, count, comparator);
+		return order;
+	}
+
+	/**
+	 * The same as sortedOrder(), but the work is split across the common
+	 * fork/join pool.  This is safe to call from any thread as long as the
+	 * comparator only looks at data nobody else is changing -- SortKeys
+	 * qualifies.
+	 * 
+	 * @param comparator	How to compare rows
+	 * @param count			How many rows
+	 * @param cancelled		Checked as we go.  If it becomes true, we give up.
+	 * @return The sorted order, or null if we were cancelled.
+	 */
+	static int[] parallelSortedOrder(IndexComparator comparator, int count, AtomicBoolean cancelled) {
+		int[] order = new int[count];
+		for (int index = 0; index < count; ++index) {
+			order[index] = index;
+		}
+		int[] scratch = order.clone();
+		ForkJoinPool.commonPool().invoke(new ParallelMergeSort(scratch, order, 0, count, comparator, cancelled));
+		return cancelled.get() ? null : order;
+	}
+
+	/**
+	 * The rows are already in order by some set of keys.  Sort each run
+	 * of rows that tie on those keys by one more key, leaving everything
+	 * else where it is.
+	 * 
+	 * @param order		Row indices in their current order.  Sorted in place.
+	 * @param prefix	The keys the rows are already sorted by
+	 * @param trailing	The key to break ties with
+	 * @return order
+	 */
+	static int[] refineOrder(int[] order, IndexComparator prefix, IndexComparator trailing) {
+		int[] scratch = order.clone();
+		int start = 0;
+		for (int index = 1; index <= order.length; ++index) {
+			if (index == order.length || prefix.compare(order[index - 1], order[index]) != 0) {
+				if (index - start > 1) {
+					mergeSort(scratch, order, start, index, trailing);
+				}
+				start = index;
+			}
+		}
+		return order;
+	}
+
+	/**
+	 * Sort dest[low..high) using src as scratch.  On entry both arrays
+	 * hold the same values in this range.
+	 * 
+	 * @param src			Scratch
+	 * @param dest			Where the sorted result ends up
+	 * @param low			First index
+	 * @param high			One past the last index
+	 * @param comparator	How to compare rows
+	 */
+	static void mergeSort(int[] src, int[] dest, int low, int high, IndexComparator comparator) {
+		int length = high - low;
+		if (length < INSERTION_SORT_THRESHOLD) {
+			for (int i = low + 1; i < high; ++i) {
+				int value = dest[i];
+				int j = i - 1;
+				while (j >= low && comparator.compare(dest[j], value) > 0) {
+					dest[j + 1] = dest[j];
+					--j;
+				}
+				dest[j + 1] = value;
+			}
+			return;
+		}
+
+		int mid = (low + high) >>> 1;
+		mergeSort(dest, src, low, mid, comparator);
+		mergeSort(dest, src, mid, high, comparator);
+		merge(src, dest, low, mid, high, comparator);
+	}
+
+	/**
+	 * Merge the sorted runs src[low..mid) and src[mid..high) into dest.
+	 * 
+	 * @param src			The two sorted runs
+	 * @param dest			Where the merged result goes
+	 * @param low			First index
+	 * @param mid			Start of the second run
+	 * @param high			One past the last index
+	 * @param comparator	How to compare rows
+	 */
+	static void merge(int[] src, int[] dest, int low, int mid, int high, IndexComparator comparator) {
+		// Already in order?  Just copy.
+		if (comparator.compare(src[mid - 1], src[mid]) <= 0) {
+			System.arraycopy(src, low, dest, low, high - low);
+			return;
+		}
+
+		for (int i = low, p = low, q = mid; i < high; ++i) {
+			if (q >= high || (p < mid && comparator.compare(src[p], src[q]) <= 0)) {
+				dest[i] = src[p++];
+			}
+			else {
+				dest[i] = src[q++];
+			}
+		}
+	}
+
+	/**
+	 * One piece of a parallel merge sort.  Same contract as mergeSort().
+	 */
+	private static class ParallelMergeSort extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int[]				src;
+		private final int[]				dest;
+		private final int				low;
+		private final int				high;
+		private final IndexComparator	comparator;
+		private final AtomicBoolean		cancelled;
+
+		ParallelMergeSort(int[] _src, int[] _dest, int _low, int _high, IndexComparator _comparator, AtomicBoolean _cancelled) {
+			src = _src;
+			dest = _dest;
+			low = _low;
+			high = _high;
+			comparator = _comparator;
+			cancelled = _cancelled;
+		}
+
+		@Override
+		protected void compute() {
+			if (cancelled.get()) {
+				return;
+			}
+			if (high - low < PARALLEL_THRESHOLD) {
+				mergeSort(src, dest, low, high, comparator);
+				return;
+			}
+			int mid = (low + high) >>> 1;
+			invokeAll(new ParallelMergeSort(dest, src, low, mid, comparator, cancelled),
+					new ParallelMergeSort(dest, src, mid, high, comparator, cancelled));
+			if (!cancelled.get()) {
+				merge(src, dest, low, mid, high, comparator);
+			}
+		}
+	}
+}
@@ -0,0 +1,455 @@
+package org.showpage.swtfoundation;
+
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * This class is used by TableView to sort.  We pull each row's value for
+ * a column out exactly once, up front, and then compare rows by index.
+ * This way a sort of n rows calls TableViewColumn.getValue() n times
+ * rather than 2 * n * log(n) times.
+ *
+ * Columns whose keys are primitives get their keys pulled into primitive
+ * arrays, so we neither box the values nor call compareTo().  Int and
+ * boolean keys go one better: each key is packed with its row index into
+ * a long, and we sort the longs directly.  A column that returns boxed
+ * values can return null, so we note which rows did, and they sort first
+ * just as they do in TableViewColumn.compareKeys().  Doubles compare with
+ * Double.compare() both ways, so NaN sorts last in either.
+ *
+ * A column sorted by a java.text.Collator has each string turned into a
+ * CollationKey once, rather than having the Collator analyze both strings
+ * on every comparison.
+ *
+ * Sorting on several columns combines one set of keys per column, so a
+ * secondary column costs one getValue() per row, not one per comparison.
+ *
+ * The direction and comparator are captured when the keys are built, so
+ * flipping sortAscending mid-sort can't confuse us.
+ */
+abstract class SortKeys implements RowSorter.IndexComparator {
+	protected final boolean	ascending;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param _ascending	False to reverse the order.
+	 */
+	protected SortKeys(boolean _ascending) {
+		ascending = _ascending;
+	}
+
+	/**
+	 * Pull the keys for these columns out of these rows.  The first column
+	 * is the primary key.
+	 * 
+	 * @param cols		The columns we're sorting on
+	 * @param rows		The rows
+	 * @return The keys.
+	 */
+	static SortKeys extract(List<TableViewColumn> cols, Object[] rows) {
+		if (cols.size() == 1) {
+			return extract(cols.get(0), rows);
+		}
+		SortKeys[] parts = new SortKeys[cols.size()];
+		for (int index = 0; index < parts.length; ++index) {
+			parts[index] = extract(cols.get(index), rows);
+		}
+		return new CompositeKeys(parts);
+	}
+
+	/**
+	 * Pull the keys for this column out of these rows.
+	 * 
+	 * @param col		The column we're sorting on
+	 * @param rows		The rows
+	 * @return The keys.
+	 */
+	static SortKeys extract(TableViewColumn col, Object[] rows) {
+		boolean nullable = !col.returnsPrimitive();
+		BitSet nulls = new BitSet();
+		switch (col.sortKeyType()) {
+		case TableViewColumn.KEY_INT:
+		case TableViewColumn.KEY_BOOLEAN:
+			int[] ints = new int[rows.length];
+			for (int index = 0; index < rows.length; ++index) {
+				if (!nullable) {
+					ints[index] = (int) col.getLongValue(rows[index]);
+				}
+				else {
+					Object val = col.getValue(rows[index]);
+					if (val == null) {
+						nulls.set(index);
+					}
+					ints[index] = (int) TableViewColumn.longOf(val);
+				}
+			}
+			return new IntKeys(ints, nulls, col.sortAscending);
+
+		case TableViewColumn.KEY_LONG:
+			long[] longs = new long[rows.length];
+			for (int index = 0; index < rows.length; ++index) {
+				if (!nullable) {
+					longs[index] = col.getLongValue(rows[index]);
+				}
+				else {
+					Object val = col.getValue(rows[index]);
+					if (val == null) {
+						nulls.set(index);
+					}
+					longs[index] = TableViewColumn.longOf(val);
+				}
+			}
+			return new LongKeys(longs, nulls, col.sortAscending);
+
+		case TableViewColumn.KEY_DOUBLE:
+			double[] doubles = new double[rows.length];
+			for (int index = 0; index < rows.length; ++index) {
+				if (!nullable) {
+					doubles[index] = col.getDoubleValue(rows[index]);
+				}
+				else {
+					Object val = col.getValue(rows[index]);
+					if (val == null) {
+						nulls.set(index);
+					}
+					doubles[index] = (val instanceof Number) ? ((Number) val).doubleValue() : 0;
+				}
+			}
+			return new DoubleKeys(doubles, nulls, col.sortAscending);
+
+		default:
+			Collator collator = col.collator();
+			if (collator != null) {
+				return CollationKeys.extract(col, collator, rows);
+			}
+			Object[] keys = new Object[rows.length];
+			for (int index = 0; index < rows.length; ++index) {
+				keys[index] = col.getValue(rows[index]);
+			}
+			return new ObjectKeys(keys, col.stringComparator(), col.sortAscending);
+		}
+	}
+
+	/**
+	 * How many rows we have keys for.
+	 * 
+	 * @return The count.
+	 */
+	abstract int size();
+
+	/**
+	 * Return the row indices in sorted order.  Equal rows stay in their
+	 * original order.
+	 * 
+	 * @return order[i] is the original index of the row that belongs at i.
+	 */
+	int[] sortedOrder() {
+		return RowSorter.sortedOrder(this, size());
+	}
+
+	/**
+	 * The same as sortedOrder(), using every core we've got.
+	 * 
+	 * @param cancelled		If this becomes true, we give up.
+	 * @return The sorted order, or null if we were cancelled.
+	 */
+	int[] parallelSortedOrder(AtomicBoolean cancelled) {
+		return RowSorter.parallelSortedOrder(this, size(), cancelled);
+	}
+
+	/**
+	 * Several sets of keys, compared in order until one differs.  Each
+	 * part applies its own direction.
+	 */
+	static class CompositeKeys extends SortKeys {
+		private final SortKeys[]	parts;
+
+		CompositeKeys(SortKeys[] _parts) {
+			super(true);
+			parts = _parts;
+		}
+
+		int size() {
+			return parts[0].size();
+		}
+
+		public int compare(int a, int b) {
+			for (SortKeys part : parts) {
+				int retVal = part.compare(a, b);
+				if (retVal != 0) {
+					return retVal;
+				}
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * Keys built for the rows in one order, looked up through a
+	 * permutation.  Once we've sorted, this lets us keep the keys and
+	 * refer to rows by their new positions.
+	 */
+	static class PermutedKeys extends SortKeys {
+		private final SortKeys	keys;
+		private final int[]		order;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param _keys		The keys, by original index
+		 * @param _order	_order[i] is the original index of the row now at i
+		 */
+		PermutedKeys(SortKeys _keys, int[] _order) {
+			super(true);
+			keys = _keys;
+			order = _order;
+		}
+
+		int size() {
+			return order.length;
+		}
+
+		public int compare(int a, int b) {
+			return keys.compare(order[a], order[b]);
+		}
+	}
+
+	/**
+	 * Keys that are arbitrary objects, compared with compareTo() or the
+	 * column's sortComparator.
+	 */
+	static class ObjectKeys extends SortKeys {
+		private final Object[]				keys;
+		private final Comparator<String>	comparator;
+
+		ObjectKeys(Object[] _keys, Comparator<String> _comparator, boolean _ascending) {
+			super(_ascending);
+			keys = _keys;
+			comparator = _comparator;
+		}
+
+		int size() {
+			return keys.length;
+		}
+
+		public int compare(int a, int b) {
+			int retVal = TableViewColumn.compareValues(keys[a], keys[b], comparator);
+			return ascending ? retVal : -retVal;
+		}
+	}
+
+	/**
+	 * Strings sorted by a Collator, turned into CollationKeys up front.
+	 * CollationKey comparisons are plain bitwise comparisons, and they're
+	 * safe to make from other threads.
+	 *
+	 * The keys are built for each sort and dropped afterwards, not kept
+	 * with the rows.  TableRowCache only holds the rows shown recently, so
+	 * it couldn't keep them for us, and keeping a key beside every row
+	 * would cost about as much memory again as the strings themselves.
+	 */
+	static class CollationKeys extends SortKeys {
+		private final CollationKey[]	keys;
+
+		CollationKeys(CollationKey[] _keys, boolean _ascending) {
+			super(_ascending);
+			keys = _keys;
+		}
+
+		/**
+		 * Build the collation keys for this column.  Collator isn't
+		 * thread-safe, so this is done on the calling thread.
+		 * 
+		 * @param col		The column we're sorting on
+		 * @param collator	Its Collator
+		 * @param rows		The rows
+		 * @return The keys.
+		 */
+		static CollationKeys extract(TableViewColumn col, Collator collator, Object[] rows) {
+			CollationKey[] keys = new CollationKey[rows.length];
+			for (int index = 0; index < rows.length; ++index) {
+				Object val = col.getValue(rows[index]);
+				keys[index] = (val == null) ? null : collator.getCollationKey((String) val);
+			}
+			return new CollationKeys(keys, col.sortAscending);
+		}
+
+		int size() {
+			return keys.length;
+		}
+
+		public int compare(int a, int b) {
+			CollationKey k1 = keys[a];
+			CollationKey k2 = keys[b];
+			int retVal;
+			if (k1 == null || k2 == null) {
+				retVal = (k1 == k2) ? 0 : ((k1 == null) ? -1 : 1);
+			}
+			else {
+				retVal = k1.compareTo(k2);
+			}
+			return ascending ? retVal : -retVal;
+		}
+	}
+
+	/**
+	 * Keys pulled into a primitive array, plus a note of which rows were
+	 * null.  Nulls sort first, ahead of every value, and equal to each
+	 * other.
+	 */
+	static abstract class PrimitiveKeys extends SortKeys {
+		protected final BitSet	nulls;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param _nulls		The rows whose value was null
+		 * @param _ascending	False to reverse the order.
+		 */
+		PrimitiveKeys(BitSet _nulls, boolean _ascending) {
+			super(_ascending);
+			nulls = _nulls.isEmpty() ? null : _nulls;
+		}
+
+		public int compare(int a, int b) {
+			int retVal;
+			if (nulls != null && (nulls.get(a) || nulls.get(b))) {
+				retVal = Boolean.compare(!nulls.get(a), !nulls.get(b));
+			}
+			else {
+				retVal = compareKeys(a, b);
+			}
+			return ascending ? retVal : -retVal;
+		}
+
+		/**
+		 * Compare two rows that both have values, ignoring direction.
+		 * 
+		 * @param a		One row
+		 * @param b		The other row
+		 * @return Negative, zero or positive.
+		 */
+		abstract int compareKeys(int a, int b);
+	}
+
+	/**
+	 * Int (or boolean) keys.  We sort these by packing key and row index
+	 * into one long, which keeps equal keys in row order.  Null rows are
+	 * left out of that and put at the front, or the back if we're
+	 * descending, in row order.
+	 */
+	static class IntKeys extends PrimitiveKeys {
+		private final int[]		keys;
+
+		IntKeys(int[] _keys, BitSet _nulls, boolean _ascending) {
+			super(_nulls, _ascending);
+			keys = _keys;
+		}
+
+		int size() {
+			return keys.length;
+		}
+
+		int compareKeys(int a, int b) {
+			return Integer.compare(keys[a], keys[b]);
+		}
+
+		int[] sortedOrder() {
+			long[] packed = pack();
+			Arrays.sort(packed);
+			return unpack(packed);
+		}
+
+		int[] parallelSortedOrder(AtomicBoolean cancelled) {
+			long[] packed = pack();
+			Arrays.parallelSort(packed);
+			return cancelled.get() ? null : unpack(packed);
+		}
+
+		/**
+		 * Key in the high 32 bits -- complemented if we're descending -- and
+		 * row index in the low 32 bits.  Null rows are skipped.
+		 * 
+		 * @return One long per row that isn't null.
+		 */
+		private long[] pack() {
+			long[] packed = new long[keys.length - ((nulls == null) ? 0 : nulls.cardinality())];
+			int out = 0;
+			for (int index = 0; index < keys.length; ++index) {
+				if (nulls == null || !nulls.get(index)) {
+					int key = ascending ? keys[index] : ~keys[index];
+					packed[out++] = ((long) key << 32) | index;
+				}
+			}
+			return packed;
+		}
+
+		/**
+		 * Pull the row indices back out of the sorted longs, and put the
+		 * null rows where they belong.
+		 * 
+		 * @param packed	Sorted output of pack()
+		 * @return The sorted order.
+		 */
+		private int[] unpack(long[] packed) {
+			int[] order = new int[keys.length];
+			int out = 0;
+			if (nulls != null && ascending) {
+				for (int row = nulls.nextSetBit(0); row >= 0; row = nulls.nextSetBit(row + 1)) {
+					order[out++] = row;
+				}
+			}
+			for (int index = 0; index < packed.length; ++index) {
+				order[out++] = (int) packed[index];
+			}
+			if (nulls != null && !ascending) {
+				for (int row = nulls.nextSetBit(0); row >= 0; row = nulls.nextSetBit(row + 1)) {
+					order[out++] = row;
+				}
+			}
+			return order;
+		}
+	}
+
+	/**
+	 * Long keys.
+	 */
+	static class LongKeys extends PrimitiveKeys {
+		private final long[]	keys;
+
+		LongKeys(long[] _keys, BitSet _nulls, boolean _ascending) {
+			super(_nulls, _ascending);
+			keys = _keys;
+		}
+
+		int size() {
+			return keys.length;
+		}
+
+		int compareKeys(int a, int b) {
+			return Long.compare(keys[a], keys[b]);
+		}
+	}
+
+	/**
+	 * Double keys.
+	 */
+	static class DoubleKeys extends PrimitiveKeys {
+		private final double[]	keys;
+
+		DoubleKeys(double[] _keys, BitSet _nulls, boolean _ascending) {
+			super(_nulls, _ascending);
+			keys = _keys;
+		}
+
+		int size() {
+			return keys.length;
+		}
+
+		int compareKeys(int a, int b) {
+			return Double.compare(keys[a], keys[b]);
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package org.showpage.swtfoundation;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * This class is used by TableView to collect adds, removes and changes
+ * posted from other threads, so they can be applied on the display
+ * thread in one batch rather than one asyncExec() apiece.
+ *
+ * Posting never blocks.  The queue itself is a ConcurrentLinkedQueue,
+ * and the only other shared state is a count and a flag saying a drain
+ * has already been scheduled.  Only the post that finds the flag clear
+ * has to schedule one, so a burst of ten thousand posts costs a single
+ * runnable on the display thread.
+ *
+ * The flag is cleared before the count is read, so anything posted after
+ * a drain has started schedules the next one.
+ */
+class TableChangeQueue {
+	static final int	ADD = 0;
+	static final int	REMOVE = 1;
+	static final int	CHANGE = 2;
+
+	private final ConcurrentLinkedQueue<Change>	queue = new ConcurrentLinkedQueue<Change>();
+	private final AtomicInteger					size = new AtomicInteger();
+	private final AtomicBoolean					scheduled = new AtomicBoolean();
+
+	/** When we last drained.  Only touched on the display thread. */
+	long	lastDrain = 0;
+
+	/**
+	 * Queue up something to do.
+	 *
+	 * @param kind	ADD, REMOVE or CHANGE
+	 * @param obj	The object
+	 * @return True if the caller has to schedule a drain.
+	 */
+	boolean post(int kind, Object obj) {
+		queue.offer(new Change(kind, obj));
+		size.incrementAndGet();
+		return scheduled.compareAndSet(false, true);
+	}
+
+	/**
+	 * Start draining.  Call poll() this many times.  Anything posted from
+	 * here on schedules another drain.
+	 *
+	 * @return How many things are queued.
+	 */
+	int beginDrain() {
+		scheduled.set(false);
+		return size.get();
+	}
+
+	/**
+	 * Take the oldest thing queued.
+	 *
+	 * @return The change, or null if there isn't one.
+	 */
+	Change poll() {
+		Change change = queue.poll();
+		if (change != null) {
+			size.decrementAndGet();
+		}
+		return change;
+	}
+
+	/**
+	 * One thing to do.
+	 */
+	static class Change {
+		final int		kind;
+		final Object	obj;
+
+		Change(int _kind, Object _obj) {
+			kind = _kind;
+			obj = _obj;
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package org.showpage.swtfoundation;
+
+import java.util.*;
+import java.util.List;
+
+import org.eclipse.swt.events.*;
+import org.eclipse.swt.graphics.*;
+import org.eclipse.swt.widgets.*;
+
+/**
+ * This class is used by TableView to size its columns from a sample of
+ * rows instead of measuring every one the way TableColumn.pack() does.
+ * TableView picks the sample: the first and last rows shown and some
+ * in between at random.  We measure it a few milliseconds at a time
+ * from asyncExec(), which SWT only runs once it has no events waiting,
+ * and widen the columns as we go.  If more rows arrive while we're at
+ * it, we just take a fresh sample when the current slice is done.
+ *
+ * We keep one GC for as long as the table lives, and measure with its
+ * font metrics first.  No Latin character in any font we're likely to
+ * see is more than twice the average width, so a Latin cell whose length
+ * times twice the average width already fits doesn't need measuring at
+ * all.  Anything else -- CJK, emoji and the like -- is always measured,
+ * since a single glyph can be wider than that.
+ *
+ * Columns are never narrowed.  If the user makes one narrower, it stays
+ * that way until something wider than that turns up.
+ */
+class TableColumnSizer {
+	/** Room for the cell margins on either side of the text. */
+	static final int	PADDING = 12;
+
+	/** Room for the sort arrow in the header. */
+	static final int	HEADER_PADDING = 24;
+
+	/** How long to measure before letting other events in, in milliseconds. */
+	static final int	SLICE_MILLIS = 5;
+
+	private final TableView					view;
+	private final Table						table;
+	private final List<TableViewColumn>		columns;
+	private GC								gc = null;
+	private Font							gcFont = null;
+	private double							charWidth = 0;
+	private int[]							widths;
+	private int[]							applied;
+	private Object[]						sample = new Object[0];
+	private int								next = 0;
+	private boolean							stale = false;
+	private boolean							scheduled = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param _view		The TableView whose columns we size
+	 */
+	TableColumnSizer(TableView _view) {
+		view = _view;
+		table = view.table;
+		columns = new ArrayList<TableViewColumn>(view.columnInfo);
+		widths = new int[columns.size()];
+		applied = new int[columns.size()];
+		table.addDisposeListener(new DisposeListener() {
+			public void widgetDisposed(DisposeEvent event) {
+				dispose();
+			}
+		});
+	}
+
+	/**
+	 * The rows have changed.  Measure a new sample, on top of everything
+	 * measured so far.
+	 */
+	void measure() {
+		stale = true;
+		if (!scheduled && !table.isDisposed()) {
+			scheduled = true;
+			table.getDisplay().asyncExec(step);
+		}
+	}
+
+	/**
+	 * Let go of our GC.  We're no use after this.
+	 */
+	void dispose() {
+		if (gc != null && !gc.isDisposed()) {
+			gc.dispose();
+		}
+		gc = null;
+		sample = new Object[0];
+	}
+
+	/**
+	 * Measure some of the sample, widen the columns that need it, and come
+	 * back later for the rest.
+	 */
+	private final Runnable step = new Runnable() {
+		public void run() {
+			scheduled = false;
+			if (table.isDisposed()) {
+				dispose();
+				return;
+			}
+			prepare();
+			if (stale) {
+				sample = view.autoSizeSample();
+				next = 0;
+				stale = false;
+			}
+			long stop = System.currentTimeMillis() + SLICE_MILLIS;
+			while (next < sample.length && System.currentTimeMillis() < stop) {
+				Object obj = sample[next++];
+				for (int index = 0; index < widths.length; ++index) {
+					Object val = columns.get(index).getValue(obj);
+					if (val != null) {
+						widen(index, val.toString(), PADDING);
+					}
+				}
+			}
+			apply();
+			if (next < sample.length) {
+				scheduled = true;
+				table.getDisplay().asyncExec(this);
+			}
+			else {
+				sample = new Object[0];
+			}
+		}
+	};
+
+	/**
+	 * Make sure our GC is set up with the table's current font.  If the
+	 * font has changed, everything we measured is wrong, so start over
+	 * from the headers.
+	 */
+	private void prepare() {
+		if (gc == null) {
+			gc = new GC(table);
+		}
+		Font font = table.getFont();
+		if (font != gcFont || charWidth <= 0) {
+			gc.setFont(font);
+			gcFont = font;
+			charWidth = gc.getFontMetrics().getAverageCharacterWidth();
+			Arrays.fill(widths, 0);
+			Arrays.fill(applied, 0);
+			for (int index = 0; index < widths.length; ++index) {
+				widen(index, columns.get(index).rowHeader, HEADER_PADDING);
+			}
+		}
+	}
+
+	/**
+	 * Make sure this column is wide enough for this text.
+	 *
+	 * @param index		The column
+	 * @param text		The text
+	 * @param padding	Room needed besides the text
+	 */
+	private void widen(int index, String text, int padding) {
+		if (text == null || text.isEmpty()) {
+			return;
+		}
+		if (text.length() * charWidth * 2 + padding <= widths[index] && isLatin(text)) {
+			return;
+		}
+		int width = gc.textExtent(text).x + padding;
+		if (width > widths[index]) {
+			widths[index] = width;
+		}
+	}
+
+	/**
+	 * Is this text made only of ASCII and Latin characters?  Those are
+	 * never more than twice the average character width.
+	 *
+	 * @param text	The text
+	 * @return True if every character is below U+0250.
+	 */
+	private static boolean isLatin(String text) {
+		for (int index = 0; index < text.length(); ++index) {
+			if (text.charAt(index) >= '\u0250') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Widen any table column narrower than what we've measured.  We only
+	 * touch a column when we've found something wider than last time, so
+	 * a column the user has narrowed stays narrow.
+	 */
+	private void apply() {
+		int count = Math.min(widths.length, table.getColumnCount());
+		for (int index = 0; index < count; ++index) {
+			if (widths[index] > applied[index]) {
+				applied[index] = widths[index];
+				TableColumn col = table.getColumn(index);
+				if (col.getWidth() < widths[index]) {
+					col.setWidth(widths[index]);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,372 @@
+package org.showpage.swtfoundation;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.atomic.*;
+
+import org.eclipse.swt.widgets.*;
+
+/**
+ * One export of a TableView's rows to CSV or TSV, running on its own
+ * thread.  TableView.exportRows() starts one and hands it back, so you
+ * can cancel it.
+ *
+ * TableView takes a snapshot of which rows to write, in display order,
+ * before we start.  That's just the row objects.  Their text is produced
+ * a cell at a time into one reused char buffer, which is written out
+ * whenever it fills, so the heap doesn't grow with the size of the table.
+ * Integer columns without a formatter are written straight from the
+ * unboxed value.  String values are copied without making new strings.
+ *
+ * We flush the Writer or channel when we're done, but don't close it.
+ */
+public class TableExport implements Runnable {
+	public static final int	FORMAT_CSV		= 0;		// Comma separated, quoted as needed, CRLF line ends
+	public static final int	FORMAT_TSV		= 1;		// Tab separated; tabs and line breaks in values become spaces
+
+	/** How much text we collect before writing it out. */
+	static final int		BUFFER_SIZE = 64 * 1024;
+
+	/** Progress is reported at most this often, in milliseconds. */
+	static final int		PROGRESS_INTERVAL = 100;
+
+	private final Object[]					rows;
+	private final TableViewColumn[]			columns;
+	private final boolean[]					integral;
+	private final int						format;
+	private final Writer					writer;
+	private final WritableByteChannel		channel;
+	private final CharsetEncoder			encoder;
+	private final ITableExportListener		listener;
+	private final Display					display;
+	private final AtomicBoolean				cancelled = new AtomicBoolean();
+
+	/** Whether we write a line of column headers first. */
+	boolean									header = true;
+	private volatile boolean				done = false;
+
+	private final char[]					buf = new char[BUFFER_SIZE];
+	private int								length = 0;
+	private CharBuffer						chars;
+	private ByteBuffer						bytes;
+	private long							lastProgress = 0;
+
+	/**
+	 * Constructor.  Exactly one of _writer and _channel is given.
+	 *
+	 * @param _rows		The rows to write, in order
+	 * @param _columns	The columns to write, in order
+	 * @param _format	FORMAT_CSV or FORMAT_TSV
+	 * @param _writer	Where the text goes, or null
+	 * @param _channel	Where the bytes go, or null
+	 * @param charset	How to encode text for the channel
+	 * @param _listener	Who to tell how it's going, or null
+	 * @param _display	The display to make callbacks on
+	 */
+	TableExport(Object[] _rows, List<TableViewColumn> _columns, int _format, Writer _writer,
+			WritableByteChannel _channel, Charset charset, ITableExportListener _listener, Display _display) {
+		rows = _rows;
+		columns = _columns.toArray(new TableViewColumn[_columns.size()]);
+		format = _format;
+		writer = _writer;
+		channel = _channel;
+		encoder = (channel == null) ? null : charset.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		listener = _listener;
+		display = _display;
+
+		integral = new boolean[columns.length];
+		for (int index = 0; index < columns.length; ++index) {
+			TableViewColumn col = columns[index];
+			Class<?> type = col.valueType();
+			integral[index] = (col.formatterMethod == null || col.formatterObject == null)
+					&& (type == int.class || type == long.class || type == short.class || type == byte.class);
+		}
+	}
+
+	/**
+	 * Stop as soon as possible.  Rows already written are flushed, and the
+	 * listener is still told we finished, but gets no last progress report.
+	 */
+	public void cancel() {
+		cancelled.set(true);
+	}
+
+	/**
+	 * Were we cancelled?
+	 *
+	 * @return True if so.
+	 */
+	public boolean isCancelled() {
+		return cancelled.get();
+	}
+
+	/**
+	 * Are we finished, one way or another?
+	 *
+	 * @return True if so.
+	 */
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Return how many rows we're writing.
+	 *
+	 * @return The count, not counting the header line.
+	 */
+	public int rowCount() {
+		return rows.length;
+	}
+
+	/**
+	 * Write everything.  This is what our thread runs.
+	 */
+	public void run() {
+		Exception error = null;
+		try {
+			if (channel != null) {
+				chars = CharBuffer.wrap(buf);
+				bytes = ByteBuffer.allocate((int) (BUFFER_SIZE * encoder.maxBytesPerChar()));
+			}
+			for (int index = 0; header && index < columns.length; ++index) {
+				if (index > 0) {
+					putSeparator();
+				}
+				putText(columns[index].rowHeader);
+			}
+			if (header) {
+				putLineEnd();
+			}
+
+			int written = 0;
+			for (int row = 0; row < rows.length && !cancelled.get(); ++row) {
+				for (int index = 0; index < columns.length; ++index) {
+					if (index > 0) {
+						putSeparator();
+					}
+					if (integral[index]) {
+						putLong(columns[index].getLongValue(rows[row]));
+					}
+					else {
+						Object val = columns[index].getValue(rows[row]);
+						if (val != null) {
+							putText(val.toString());
+						}
+					}
+				}
+				putLineEnd();
+				written = row + 1;
+				reportProgress(written, false);
+			}
+
+			drain(true);
+			if (writer != null) {
+				writer.flush();
+			}
+			if (!cancelled.get()) {
+				reportProgress(written, true);
+			}
+		}
+		catch (Exception ex) {
+			error = ex;
+			if (listener == null) {
+				System.err.printf("Exception: %s", ex.getMessage());
+				ex.printStackTrace();
+			}
+		}
+		finished(error);
+	}
+
+	/**
+	 * Write a cell, quoting or cleaning it up as our format requires.
+	 *
+	 * @param text	The cell's text
+	 */
+	private void putText(String text) throws IOException {
+		if (text == null) {
+			return;
+		}
+		int size = text.length();
+		if (format == FORMAT_CSV && needsQuotes(text)) {
+			put('"');
+			for (int index = 0; index < size; ++index) {
+				char ch = text.charAt(index);
+				if (ch == '"') {
+					put('"');
+				}
+				put(ch);
+			}
+			put('"');
+			return;
+		}
+		if (format == FORMAT_TSV) {
+			for (int index = 0; index < size; ++index) {
+				char ch = text.charAt(index);
+				put((ch == '\t' || ch == '\r' || ch == '\n') ? ' ' : ch);
+			}
+			return;
+		}
+		for (int from = 0; from < size; ) {
+			if (length == buf.length) {
+				drain(false);
+			}
+			int count = Math.min(size - from, buf.length - length);
+			text.getChars(from, from + count, buf, length);
+			length += count;
+			from += count;
+		}
+	}
+
+	/**
+	 * Does this CSV cell have to be quoted?
+	 *
+	 * @param text	The cell's text
+	 * @return True if it holds a comma, quote or line break.
+	 */
+	private static boolean needsQuotes(String text) {
+		for (int index = 0; index < text.length(); ++index) {
+			char ch = text.charAt(index);
+			if (ch == ',' || ch == '"' || ch == '\r' || ch == '\n') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Write a whole number without making a String of it.
+	 *
+	 * @param value		The number
+	 */
+	private void putLong(long value) throws IOException {
+		if (length + 20 > buf.length) {
+			drain(false);
+		}
+		if (value == Long.MIN_VALUE) {
+			putText(Long.toString(value));
+			return;
+		}
+		if (value < 0) {
+			buf[length++] = '-';
+			value = -value;
+		}
+		int end = length + 1;
+		for (long rest = value / 10; rest > 0; rest /= 10) {
+			++end;
+		}
+		length = end;
+		do {
+			buf[--end] = (char) ('0' + (value % 10));
+			value /= 10;
+		} while (value > 0);
+	}
+
+	private void putSeparator() throws IOException {
+		put((format == FORMAT_TSV) ? '\t' : ',');
+	}
+
+	private void putLineEnd() throws IOException {
+		if (format == FORMAT_CSV) {
+			put('\r');
+		}
+		put('\n');
+	}
+
+	private void put(char ch) throws IOException {
+		if (length == buf.length) {
+			drain(false);
+		}
+		buf[length++] = ch;
+	}
+
+	/**
+	 * Write out what's in our buffer.
+	 *
+	 * @param last	True if there's nothing more to come.
+	 */
+	private void drain(boolean last) throws IOException {
+		if (writer != null) {
+			writer.write(buf, 0, length);
+			length = 0;
+			return;
+		}
+		chars.clear();
+		chars.limit(length);
+		while (true) {
+			CoderResult result = encoder.encode(chars, bytes, last);
+			writeBytes();
+			if (result.isUnderflow()) {
+				break;
+			}
+		}
+		if (last) {
+			while (encoder.flush(bytes).isOverflow()) {
+				writeBytes();
+			}
+			writeBytes();
+		}
+
+		// Half a surrogate pair waits for the rest of it.
+		int kept = chars.remaining();
+		System.arraycopy(buf, chars.position(), buf, 0, kept);
+		length = kept;
+	}
+
+	private void writeBytes() throws IOException {
+		bytes.flip();
+		while (bytes.hasRemaining()) {
+			channel.write(bytes);
+		}
+		bytes.clear();
+	}
+
+	/**
+	 * Tell our listener how far we've got, if it's been a while.
+	 *
+	 * @param written	Rows written so far
+	 * @param force		True to tell them regardless
+	 */
+	private void reportProgress(final int written, boolean force) {
+		if (listener == null || display.isDisposed()) {
+			return;
+		}
+		if (!force) {
+			if ((written & 1023) != 0) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			if (now - lastProgress < PROGRESS_INTERVAL) {
+				return;
+			}
+			lastProgress = now;
+		}
+		display.asyncExec(new Runnable() {
+			public void run() {
+				listener.exportProgress(TableExport.this, written, rows.length);
+			}
+		});
+	}
+
+	/**
+	 * Tell our listener we're done.
+	 *
+	 * @param error		What went wrong, or null.
+	 */
+	private void finished(final Exception error) {
+		done = true;
+		if (listener == null || display.isDisposed()) {
+			return;
+		}
+		display.asyncExec(new Runnable() {
+			public void run() {
+				listener.exportFinished(TableExport.this, error);
+			}
+		});
+	}
+}
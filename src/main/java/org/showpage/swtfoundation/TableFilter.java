@@ -0,0 +1,401 @@
+package org.showpage.swtfoundation;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * This class is used by TableView to filter rows on a piece of text.  A
+ * row matches if the text of any of its columns contains the query,
+ * ignoring case.
+ *
+ * We keep one bit per row.  The bits are indexed the same way as
+ * TableView.snapshotRows(): by position in the data vector if TableView
+ * owns its rows, or by source index if it displays an ITableDataSource.
+ * TableView keeps the bits current as rows come and go, so typing one
+ * more character only has to test the rows that matched before.
+ *
+ * Matching a big table in the background is split into chunks on the
+ * fork/join pool.  Each chunk covers whole 64-row words of the result, so
+ * the chunks never write to the same word and need no locking.  Matching
+ * on the display thread goes row by row on that thread, so getters and
+ * formatters aren't called from anywhere else.
+ */
+class TableFilter {
+	/** Tables with more rows than this get matched a chunk at a time. */
+	static final int	CHUNK_SIZE = 4096;
+
+	final String		query;
+	final BitSet		matches;
+
+	/** The positions of the rows we show, in display order.  Always ascending.  Only the first viewCount are used. */
+	int[]				viewRows = new int[0];
+	int					viewCount = 0;
+
+	/** How many positions viewRows covers, or -1 if it isn't in data order and can't be kept up in place. */
+	private int			viewedRows = -1;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param _query	What we filtered on
+	 * @param _matches	One bit per row that matched
+	 */
+	TableFilter(String _query, BitSet _matches) {
+		query = _query;
+		matches = _matches;
+	}
+
+	/**
+	 * Does this row match our query?
+	 *
+	 * @param row		The object displayed in the row
+	 * @param columns	Our columns
+	 * @return True if so.
+	 */
+	boolean test(Object row, List<TableViewColumn> columns) {
+		return matches(row, columns, query);
+	}
+
+	/**
+	 * Rows were inserted.  The new rows start out not matching.
+	 *
+	 * @param from	Index of the first new row
+	 * @param count	How many rows were inserted
+	 */
+	void insert(int from, int count) {
+		RowBits.insert(matches, from, count);
+	}
+
+	/**
+	 * Rows were removed.
+	 *
+	 * @param from	Index the first removed row used to have
+	 * @param count	How many rows were removed
+	 */
+	void remove(int from, int count) {
+		RowBits.remove(matches, from, count);
+	}
+
+	/**
+	 * All these rows were removed, and the rest closed up behind them.
+	 *
+	 * @param rows	The rows removed
+	 */
+	void removeRows(BitSet rows) {
+		RowBits.removeRows(matches, rows);
+	}
+
+	/**
+	 * The rows were put in a new order.
+	 *
+	 * @param order		order[i] is where the row now at i used to be
+	 */
+	void permute(int[] order) {
+		RowBits.permute(matches, order);
+	}
+
+	/**
+	 * Work out which rows we show.
+	 *
+	 * @param order		Display order as indices into our bits, or null if
+	 *					display order is the order of our bits.
+	 * @param count		How many rows there are
+	 */
+	void buildViewRows(int[] order, int count) {
+		int[] rows = new int[matches.cardinality()];
+		int out = 0;
+		if (order == null) {
+			for (int bit = matches.nextSetBit(0); bit >= 0 && bit < count; bit = matches.nextSetBit(bit + 1)) {
+				rows[out++] = bit;
+			}
+		}
+		else {
+			for (int index = 0; index < count && out < rows.length; ++index) {
+				if (matches.get(order[index])) {
+					rows[out++] = index;
+				}
+			}
+		}
+		viewRows = rows;
+		viewCount = out;
+		viewedRows = (order == null) ? count : -1;
+	}
+
+	/**
+	 * Show nothing.
+	 */
+	void clearViewRows() {
+		viewRows = new int[0];
+		viewCount = 0;
+		viewedRows = 0;
+	}
+
+	/**
+	 * A row was inserted in data order, and its bit is already set or
+	 * clear.  Fix up the rows we show in place.
+	 *
+	 * @param position	Where it went
+	 * @param count		How many rows there are now
+	 * @return The first filtered row that changed, or -1 if the rows we
+	 *			show have to be worked out again.
+	 */
+	int insertViewRow(int position, int count) {
+		if (viewedRows != count - 1) {
+			viewedRows = -1;
+			return -1;
+		}
+		++viewedRows;
+		int at = viewSlot(position);
+		for (int index = at; index < viewCount; ++index) {
+			++viewRows[index];
+		}
+		return updateViewRow(position);
+	}
+
+	/**
+	 * A row is about to be removed from data order.  Fix up the rows we
+	 * show in place.
+	 *
+	 * @param position	Where it is
+	 * @param count		How many rows there are before it goes
+	 * @return The first filtered row that changed, or -1 if the rows we
+	 *			show have to be worked out again.
+	 */
+	int removeViewRow(int position, int count) {
+		if (viewedRows != count) {
+			viewedRows = -1;
+			return -1;
+		}
+		--viewedRows;
+		int at = viewSlot(position);
+		int first = viewCount;
+		if (at < viewCount && viewRows[at] == position) {
+			System.arraycopy(viewRows, at + 1, viewRows, at, --viewCount - at);
+			first = at;
+		}
+		for (int index = at; index < viewCount; ++index) {
+			--viewRows[index];
+		}
+		return first;
+	}
+
+	/**
+	 * A row's bit may have changed.  Show or hide it to match.
+	 *
+	 * @param position	Where it is
+	 * @param count		How many rows there are
+	 * @return The first filtered row that changed, or -1 if the rows we
+	 *			show have to be worked out again.
+	 */
+	int changeViewRow(int position, int count) {
+		if (viewedRows != count) {
+			viewedRows = -1;
+			return -1;
+		}
+		return updateViewRow(position);
+	}
+
+	/**
+	 * Add or drop this position from the rows we show, to match its bit.
+	 *
+	 * @param position	The row
+	 * @return The first filtered row that changed.
+	 */
+	private int updateViewRow(int position) {
+		int at = viewSlot(position);
+		boolean shown = at < viewCount && viewRows[at] == position;
+		if (shown == matches.get(position)) {
+			return viewCount;
+		}
+		if (shown) {
+			System.arraycopy(viewRows, at + 1, viewRows, at, --viewCount - at);
+		}
+		else {
+			if (viewCount == viewRows.length) {
+				viewRows = Arrays.copyOf(viewRows, viewCount + (viewCount >> 1) + 16);
+			}
+			System.arraycopy(viewRows, at, viewRows, at + 1, viewCount++ - at);
+			viewRows[at] = position;
+		}
+		return at;
+	}
+
+	/**
+	 * Find where this position is, or would go, in viewRows.
+	 *
+	 * @param position	The row
+	 * @return The index of the first row shown at or after it.
+	 */
+	private int viewSlot(int position) {
+		int index = Arrays.binarySearch(viewRows, 0, viewCount, position);
+		return (index >= 0) ? index : ~index;
+	}
+
+	/**
+	 * Return where this row is displayed.
+	 *
+	 * @param position	The row's position in the unfiltered display
+	 * @return Its position in the filtered display, or -1 if it's hidden.
+	 */
+	int viewIndex(int position) {
+		int index = Arrays.binarySearch(viewRows, 0, viewCount, position);
+		return (index >= 0) ? index : -1;
+	}
+
+	/**
+	 * Test every row against this query.
+	 *
+	 * @param rows		The rows
+	 * @param columns	Our columns
+	 * @param query		The text to look for
+	 * @param only		If not null, only these rows can possibly match.
+	 * @param known		If not null, these rows are known to match.
+	 * @param cancelled	Set this to give up
+	 * @param parallel	True to split the work across the fork/join pool,
+	 *					false to do it all on this thread.
+	 * @return The rows that match, or null if we were cancelled.
+	 */
+	static BitSet match(Object[] rows, List<TableViewColumn> columns, String query,
+			BitSet only, BitSet known, AtomicBoolean cancelled, boolean parallel) {
+		long[] words = new long[(rows.length + 63) >>> 6];
+		MatchTask task = new MatchTask(rows, columns, query, only, known, cancelled, words, 0, rows.length);
+		if (parallel) {
+			task.invoke();
+		}
+		else {
+			task.matchRange();
+		}
+		if (cancelled.get()) {
+			return null;
+		}
+		return BitSet.valueOf(words);
+	}
+
+	/**
+	 * Find where these rows are.
+	 *
+	 * @param rows		All the rows
+	 * @param wanted	The rows to look for
+	 * @return A bit for each index in rows holding one of them.
+	 */
+	static BitSet positionsOf(Object[] rows, Collection<Object> wanted) {
+		Set<Object> lookFor = Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+		lookFor.addAll(wanted);
+		BitSet found = new BitSet(rows.length);
+		for (int index = 0; index < rows.length; ++index) {
+			if (lookFor.contains(rows[index])) {
+				found.set(index);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Does this row match this query?
+	 *
+	 * @param row		The object displayed in the row
+	 * @param columns	Our columns
+	 * @param query		The text to look for
+	 * @return True if some column's text contains the query.
+	 */
+	static boolean matches(Object row, List<TableViewColumn> columns, String query) {
+		for (TableViewColumn col : columns) {
+			Object val = col.getValue(row);
+			if (val != null && containsIgnoreCase(val.toString(), query)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Does this text contain this query, ignoring case?  This is what
+	 * text.toLowerCase().contains(query.toLowerCase()) would tell us,
+	 * without making two new strings for every cell.
+	 *
+	 * @param text		The text to search
+	 * @param query		The text to look for
+	 * @return True if found.
+	 */
+	static boolean containsIgnoreCase(String text, String query) {
+		int length = query.length();
+		if (length == 0) {
+			return true;
+		}
+		char first = fold(query.charAt(0));
+		int last = text.length() - length;
+		for (int index = 0; index <= last; ++index) {
+			if (fold(text.charAt(index)) == first && text.regionMatches(true, index + 1, query, 1, length - 1)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Fold a character's case the same way String.regionMatches() does.
+	 *
+	 * @param ch	The character
+	 * @return Its folded form.
+	 */
+	static char fold(char ch) {
+		return Character.toLowerCase(Character.toUpperCase(ch));
+	}
+
+	/**
+	 * Test a range of rows, splitting big ranges on 64-row boundaries.
+	 */
+	private static class MatchTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Object[]					rows;
+		private final List<TableViewColumn>		columns;
+		private final String					query;
+		private final BitSet					only;
+		private final BitSet					known;
+		private final AtomicBoolean				cancelled;
+		private final long[]					words;
+		private final int						low;
+		private final int						high;
+
+		MatchTask(Object[] _rows, List<TableViewColumn> _columns, String _query, BitSet _only, BitSet _known,
+				AtomicBoolean _cancelled, long[] _words, int _low, int _high) {
+			rows = _rows;
+			columns = _columns;
+			query = _query;
+			only = _only;
+			known = _known;
+			cancelled = _cancelled;
+			words = _words;
+			low = _low;
+			high = _high;
+		}
+
+		protected void compute() {
+			if (cancelled.get()) {
+				return;
+			}
+			if (high - low > CHUNK_SIZE) {
+				int mid = ((low + high) >>> 1) & ~63;
+				invokeAll(new MatchTask(rows, columns, query, only, known, cancelled, words, low, mid),
+						new MatchTask(rows, columns, query, only, known, cancelled, words, mid, high));
+				return;
+			}
+			matchRange();
+		}
+
+		/**
+		 * Test our whole range on this thread.
+		 */
+		void matchRange() {
+			int start = (only != null) ? only.nextSetBit(low) : low;
+			for (int index = start; index >= 0 && index < high; ) {
+				if ((known != null && known.get(index)) || matches(rows[index], columns, query)) {
+					words[index >>> 6] |= 1L << index;
+				}
+				index = (only != null) ? only.nextSetBit(index + 1) : index + 1;
+			}
+		}
+	}
+}
@@ -0,0 +1,920 @@
+package org.showpage.swtfoundation;
+
+import java.util.*;
+
+/**
+ * This class is used by TableView to group rows on one column.  Each
+ * group gets a header row, and its rows follow in their sorted order
+ * unless the group is collapsed.  The header shows the group's value and
+ * row count, plus whatever aggregate each column asks for.
+ *
+ * We keep one Entry per row, indexed the same way as TableFilter's bits:
+ * by data position, or by source index for an ITableDataSource.  An
+ * entry remembers the row's group and the numbers it contributed, so
+ * when a row changes or goes away we can take exactly those numbers back
+ * out.  Counts never need a rescan.  Minimums and maximums only do if
+ * the row leaving held the extreme, and then only that group's rows are
+ * looked at, and only when someone next asks.  Sums would slowly pick up
+ * rounding error that way, so after enough rows have left a group we add
+ * its rows up again, the next time someone asks.
+ *
+ * The groups are kept in order by value as they come and go.  When
+ * TableView owns its rows, a row that's inserted, removed or moved, or
+ * that moves to another group or in or out of the filter, is fitted into
+ * its group's run of table rows in place: one pass over the positions to
+ * shift them, and a header added or dropped if the group appears or
+ * disappears.  Anything bigger, or any change to an ITableDataSource's
+ * rows, lays the display out again, which is one pass over the row
+ * positions.
+ */
+class TableGroups {
+	/** displayIndex value for a row that's shown, but in a collapsed group. */
+	private static final int				FOLDED = -2;
+
+	final TableViewColumn					groupColumn;
+	private final int[]						aggregated;
+	private final HashMap<Object,Group>		groups = new HashMap<Object,Group>();
+	private final ArrayList<Entry>			entries = new ArrayList<Entry>();
+	private final HashSet<Object>			collapsed = new HashSet<Object>();
+	private final List<TableViewColumn>		columns;
+
+	/** Every group, in order by value. */
+	private final ArrayList<Group>			sortedGroups = new ArrayList<Group>();
+	private boolean							sortedAscending;
+	private Comparator<String>				sortedWith;
+
+	/** What each table row shows.  A position, or ~n for the header of displayGroups[n].  Only the first displayCount are used. */
+	private int[]							displayRows = new int[0];
+	private int								displayCount = 0;
+	private final ArrayList<Group>			displayGroups = new ArrayList<Group>();
+	/** The table row showing each position, -1 if it's filtered out, or FOLDED.  Only the first indexCount are used. */
+	private int[]							displayIndex = new int[0];
+	private int								indexCount = 0;
+	/** True if the display is in data order and can be kept up in place. */
+	private boolean							inPlace = false;
+	/** The group a row last left in update(), whose header needs redisplaying. */
+	private Group							regroupedFrom = null;
+
+	private final Comparator<Group>			byKey = new Comparator<Group>() {
+		public int compare(Group g1, Group g2) {
+			return groupColumn.compareKeys(g1.key, g2.key);
+		}
+	};
+
+	/**
+	 * Constructor.
+	 *
+	 * @param _groupColumn	The column to group on
+	 * @param _columns		All our columns
+	 */
+	TableGroups(TableViewColumn _groupColumn, List<TableViewColumn> _columns) {
+		groupColumn = _groupColumn;
+		columns = _columns;
+		sortedAscending = groupColumn.sortAscending;
+		sortedWith = groupColumn.stringComparator();
+		int count = 0;
+		int[] which = new int[columns.size()];
+		for (int index = 0; index < which.length; ++index) {
+			if (columns.get(index).aggregate != TableViewColumn.AGG_NONE) {
+				which[count++] = index;
+			}
+		}
+		aggregated = Arrays.copyOf(which, count);
+	}
+
+	//======================================================================
+	// Keeping up with the rows.
+	//======================================================================
+
+	/**
+	 * Forget everything and start over with these rows.
+	 *
+	 * @param rows	The rows, in snapshot order
+	 */
+	void reset(Object[] rows) {
+		groups.clear();
+		sortedGroups.clear();
+		inPlace = false;
+		entries.clear();
+		entries.ensureCapacity(rows.length);
+		for (Object row : rows) {
+			entries.add(newEntry(row));
+		}
+	}
+
+	/**
+	 * A row was added.
+	 *
+	 * @param index		Where it went
+	 * @param row		The row
+	 */
+	void insert(int index, Object row) {
+		entries.add(index, newEntry(row));
+	}
+
+	/**
+	 * A row was removed.
+	 *
+	 * @param index		Where it was
+	 */
+	void remove(int index) {
+		leave(entries.remove(index));
+	}
+
+	/**
+	 * A range of rows was removed.
+	 *
+	 * @param from		Where the first one was
+	 * @param count		How many
+	 */
+	void remove(int from, int count) {
+		inPlace = false;
+		List<Entry> gone = entries.subList(from, from + count);
+		for (Entry entry : gone) {
+			leave(entry);
+		}
+		gone.clear();
+	}
+
+	/**
+	 * All these rows were removed, and the rest closed up behind them.
+	 *
+	 * @param rows	The rows removed
+	 */
+	void removeRows(BitSet rows) {
+		int first = rows.nextSetBit(0);
+		if (first < 0) {
+			return;
+		}
+		inPlace = false;
+		int size = entries.size();
+		int out = first;
+		for (int in = first; in < size; ++in) {
+			Entry entry = entries.get(in);
+			if (rows.get(in)) {
+				leave(entry);
+			}
+			else {
+				entries.set(out++, entry);
+			}
+		}
+		entries.subList(out, size).clear();
+	}
+
+	/**
+	 * A row moved.
+	 *
+	 * @param from		Where it was
+	 * @param to		Where it is now
+	 */
+	void move(int from, int to) {
+		entries.add(to, entries.remove(from));
+	}
+
+	/**
+	 * The rows were put in a new order.
+	 *
+	 * @param order		order[i] is where the row now at i used to be
+	 */
+	void permute(int[] order) {
+		inPlace = false;
+		Entry[] old = entries.toArray(new Entry[entries.size()]);
+		for (int index = 0; index < order.length; ++index) {
+			entries.set(index, old[order[index]]);
+		}
+	}
+
+	/**
+	 * A row has new values.  Take its old numbers out of its group and put
+	 * the new ones in, moving it to another group if need be.
+	 *
+	 * @param index		Where it is
+	 * @param row		The row
+	 * @return True if it changed groups.
+	 */
+	boolean update(int index, Object row) {
+		Entry entry = entries.get(index);
+		Object key = groupColumn.getValue(row);
+		if (Objects.equals(key, entry.group.key)) {
+			entry.group.subtract(entry);
+			entry.values = valuesOf(row);
+			entry.group.add(entry);
+			return false;
+		}
+		leave(entry);
+		Entry moved = newEntry(row);
+		moved.shownIn = entry.shownIn;
+		entries.set(index, moved);
+		regroupedFrom = entry.group;
+		return true;
+	}
+
+	/**
+	 * Build the entry for a new row and add it to its group.
+	 *
+	 * @param row	The row
+	 * @return The entry.
+	 */
+	private Entry newEntry(Object row) {
+		Object key = groupColumn.getValue(row);
+		Group group = groups.get(key);
+		if (group == null) {
+			group = new Group(key, aggregated.length);
+			groups.put(key, group);
+			sortGroups();
+			sortedGroups.add(groupSlot(sortedGroups, group), group);
+		}
+		Entry entry = new Entry();
+		entry.group = group;
+		entry.values = valuesOf(row);
+		group.members.add(entry);
+		group.add(entry);
+		return entry;
+	}
+
+	/**
+	 * Take this row out of its group, dropping the group if it's empty.
+	 *
+	 * @param entry		The row's entry
+	 */
+	private void leave(Entry entry) {
+		Group group = entry.group;
+		group.members.remove(entry);
+		group.subtract(entry);
+		if (group.members.isEmpty()) {
+			groups.remove(group.key);
+			sortedGroups.remove(group);
+		}
+	}
+
+	/**
+	 * Find where a group goes in a list that's in order by value: after
+	 * any with the same value.
+	 *
+	 * @param list		The groups
+	 * @param group		The group
+	 * @return The index to insert it at.
+	 */
+	private int groupSlot(List<Group> list, Group group) {
+		int low = 0;
+		int high = list.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (byKey.compare(list.get(mid), group) <= 0) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Put the groups back in order if somebody has changed the group
+	 * column's direction or string comparator.  The display was in the old
+	 * order, so it has to be laid out again.
+	 */
+	private void sortGroups() {
+		Comparator<String> comparator = groupColumn.stringComparator();
+		if (groupColumn.sortAscending != sortedAscending || comparator != sortedWith) {
+			sortedAscending = groupColumn.sortAscending;
+			sortedWith = comparator;
+			Collections.sort(sortedGroups, byKey);
+			inPlace = false;
+		}
+	}
+
+	/**
+	 * Pull out the numbers this row contributes.
+	 *
+	 * @param row	The row
+	 * @return One value per aggregated column, NaN for none.
+	 */
+	private double[] valuesOf(Object row) {
+		double[] values = new double[aggregated.length];
+		for (int index = 0; index < values.length; ++index) {
+			values[index] = columns.get(aggregated[index]).getAggregateValue(row);
+		}
+		return values;
+	}
+
+	//======================================================================
+	// Display.
+	//======================================================================
+
+	/**
+	 * Work out what each table row shows.
+	 *
+	 * @param sequence	The positions to show, in order, or null for all of them
+	 * @param length	How many of sequence to use
+	 * @param count		How many positions there are
+	 * @param order		Maps a position to our entry index, or null if they're the same.
+	 */
+	void buildDisplay(int[] sequence, int length, int count, int[] order) {
+		if (sequence == null) {
+			length = count;
+		}
+		sortGroups();
+
+		// Count the rows shown in each group.
+		for (int index = 0; index < sortedGroups.size(); ++index) {
+			sortedGroups.get(index).ordinal = index;
+			sortedGroups.get(index).shown = 0;
+		}
+		for (Entry entry : entries) {
+			entry.shownIn = null;
+		}
+		for (int index = 0; index < length; ++index) {
+			++groupAt(sequence, index, order).shown;
+		}
+
+		// Lay out the headers, leaving room after each for its rows.
+		int total = 0;
+		int[] next = new int[sortedGroups.size()];
+		displayGroups.clear();
+		for (Group group : sortedGroups) {
+			if (group.shown > 0) {
+				group.expanded = !collapsed.contains(group.key);
+				group.headerRow = total;
+				next[group.ordinal] = total + 1;
+				total += 1 + (group.expanded ? group.shown : 0);
+			}
+		}
+		int[] rows = new int[total];
+		for (Group group : sortedGroups) {
+			if (group.shown > 0) {
+				rows[group.headerRow] = ~displayGroups.size();
+				displayGroups.add(group);
+			}
+		}
+
+		// Drop each row into its group's space, keeping them in order.
+		int[] index = new int[count];
+		Arrays.fill(index, -1);
+		for (int seq = 0; seq < length; ++seq) {
+			int position = (sequence != null) ? sequence[seq] : seq;
+			Entry entry = entries.get((order != null) ? order[position] : position);
+			Group group = entry.group;
+			entry.shownIn = group;
+			if (group.expanded) {
+				int row = next[group.ordinal]++;
+				rows[row] = position;
+				index[position] = row;
+			}
+			else {
+				index[position] = FOLDED;
+			}
+		}
+		displayRows = rows;
+		displayCount = total;
+		displayIndex = index;
+		indexCount = count;
+		inPlace = (order == null);
+		regroupedFrom = null;
+	}
+
+	/**
+	 * A row was just added with insert().  Fit it into the display in
+	 * place.
+	 *
+	 * @param position	Where it went
+	 * @param shown		True if the filter lets it through
+	 * @return The first table row that changed, or -1 if the display has to
+	 *			be laid out again.
+	 */
+	int insertDisplayRow(int position, boolean shown) {
+		if (!inPlace || indexCount != entries.size() - 1) {
+			inPlace = false;
+			return -1;
+		}
+		displayIndex = grow(displayIndex, indexCount + 1);
+		System.arraycopy(displayIndex, position, displayIndex, position + 1, indexCount++ - position);
+		displayIndex[position] = -1;
+		shiftPositions(position, 1);
+		return changeDisplayRow(position, shown);
+	}
+
+	/**
+	 * A row is about to be taken out with remove().  Take it out of the
+	 * display in place.
+	 *
+	 * @param position	Where it is
+	 * @return The first table row that changed, or -1 if the display has to
+	 *			be laid out again.
+	 */
+	int removeDisplayRow(int position) {
+		int first = changeDisplayRow(position, false);
+		if (first >= 0) {
+			System.arraycopy(displayIndex, position + 1, displayIndex, position, --indexCount - position);
+			shiftPositions(position + 1, -1);
+		}
+		return first;
+	}
+
+	/**
+	 * A row may have moved to another group, or in or out of the filter.
+	 * Move it in the display to match.
+	 *
+	 * @param position	Where it is
+	 * @param shown		True if the filter lets it through
+	 * @return The first table row that changed, or -1 if the display has to
+	 *			be laid out again.
+	 */
+	int changeDisplayRow(int position, boolean shown) {
+		sortGroups();
+		if (!inPlace || indexCount != entries.size()) {
+			inPlace = false;
+			return -1;
+		}
+		Entry entry = entries.get(position);
+		Group target = shown ? entry.group : null;
+		int first = displayCount;
+		if (entry.shownIn != target) {
+			if (entry.shownIn != null) {
+				first = hide(position, entry);
+			}
+			if (target != null) {
+				first = Math.min(first, show(position, entry));
+			}
+		}
+
+		// Its groups' row counts may have changed.
+		first = Math.min(first, displayedHeader(entry.group));
+		first = Math.min(first, displayedHeader(regroupedFrom));
+		regroupedFrom = null;
+		return first;
+	}
+
+	/**
+	 * Add a row to its group in the display, adding a header for the
+	 * group if it wasn't shown.
+	 *
+	 * @param position	Where the row is
+	 * @param entry		The row's entry
+	 * @return The first table row that changed.
+	 */
+	private int show(int position, Entry entry) {
+		Group group = entry.group;
+		if (group.shown == 0) {
+			int groupNum = groupSlot(displayGroups, group);
+			int row = (groupNum < displayGroups.size()) ? displayGroups.get(groupNum).headerRow : displayCount;
+			openRows(row, 1);
+			group.expanded = !collapsed.contains(group.key);
+			group.headerRow = row;
+			displayGroups.add(groupNum, group);
+			renumber(groupNum);
+		}
+		entry.shownIn = group;
+		++group.shown;
+		if (!group.expanded) {
+			displayIndex[position] = FOLDED;
+			return group.headerRow;
+		}
+
+		// The group's rows are in position order.
+		int low = group.headerRow + 1;
+		int high = group.headerRow + group.shown;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (displayRows[mid] < position) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		openRows(low, 1);
+		displayRows[low] = position;
+		displayIndex[position] = low;
+		return group.headerRow;
+	}
+
+	/**
+	 * Take a row out of the group it's shown in, dropping the group's
+	 * header if that was its last row shown.
+	 *
+	 * @param position	Where the row is
+	 * @param entry		The row's entry
+	 * @return The first table row that changed.
+	 */
+	private int hide(int position, Entry entry) {
+		Group group = entry.shownIn;
+		int row = displayIndex[position];
+		entry.shownIn = null;
+		displayIndex[position] = -1;
+		if (--group.shown == 0) {
+			int header = group.headerRow;
+			int groupNum = ~displayRows[header];
+			displayGroups.remove(groupNum);
+			closeRows(header, (row >= 0) ? 2 : 1);
+			renumber(groupNum);
+			return header;
+		}
+		if (row >= 0) {
+			closeRows(row, 1);
+		}
+		return group.headerRow;
+	}
+
+	/**
+	 * Make room for table rows.  Everything from here on moves down.
+	 *
+	 * @param row		Where the new rows go
+	 * @param count		How many
+	 */
+	private void openRows(int row, int count) {
+		displayRows = grow(displayRows, displayCount + count);
+		System.arraycopy(displayRows, row, displayRows, row + count, displayCount - row);
+		displayCount += count;
+		moveRows(row, count);
+	}
+
+	/**
+	 * Take out table rows.  Everything after them moves up.
+	 *
+	 * @param row		The first one
+	 * @param count		How many
+	 */
+	private void closeRows(int row, int count) {
+		System.arraycopy(displayRows, row + count, displayRows, row, displayCount - row - count);
+		displayCount -= count;
+		moveRows(row + count, -count);
+	}
+
+	/**
+	 * Table rows from here on moved.  Fix up the positions and headers
+	 * that point at them.
+	 *
+	 * @param from	The first table row that moved
+	 * @param by	How far
+	 */
+	private void moveRows(int from, int by) {
+		shift(displayIndex, indexCount, from, by);
+		for (Group group : displayGroups) {
+			if (group.headerRow >= from) {
+				group.headerRow += by;
+			}
+		}
+	}
+
+	/**
+	 * Positions from here on moved.  Fix up the table rows showing them.
+	 *
+	 * @param from	The first position that moved
+	 * @param by	How far
+	 */
+	private void shiftPositions(int from, int by) {
+		shift(displayRows, displayCount, from, by);
+	}
+
+	/**
+	 * Add to every value in an array that's at least some amount.  This
+	 * runs over every row for every insert and remove, so it's done
+	 * without a branch, which lets the JIT vectorize it: the sign bit of
+	 * from - 1 - value is set just when value >= from.  Negative values,
+	 * which are headers or hidden rows, are always left alone.
+	 *
+	 * @param values	The array
+	 * @param count		How many of them are in use
+	 * @param from		The smallest value that moves
+	 * @param by		How far
+	 */
+	private static void shift(int[] values, int count, int from, int by) {
+		for (int index = 0; index < count; ++index) {
+			values[index] += by & ((from - 1 - values[index]) >> 31);
+		}
+	}
+
+	/**
+	 * Groups from here on have new numbers.  Point their headers at them.
+	 *
+	 * @param from	The first group renumbered
+	 */
+	private void renumber(int from) {
+		for (int groupNum = from; groupNum < displayGroups.size(); ++groupNum) {
+			displayRows[displayGroups.get(groupNum).headerRow] = ~groupNum;
+		}
+	}
+
+	/**
+	 * Return the table row of this group's header.
+	 *
+	 * @param group		The group, or null
+	 * @return The row, or displayCount if it isn't shown.
+	 */
+	private int displayedHeader(Group group) {
+		return (group != null && group.shown > 0) ? group.headerRow : displayCount;
+	}
+
+	/**
+	 * Make sure an array has room for this many ints.
+	 *
+	 * @param array		The array
+	 * @param needed	How many it has to hold
+	 * @return The array, or a bigger copy.
+	 */
+	private static int[] grow(int[] array, int needed) {
+		if (needed <= array.length) {
+			return array;
+		}
+		return Arrays.copyOf(array, Math.max(needed, array.length + (array.length >> 1) + 16));
+	}
+
+	/**
+	 * Return how many table rows there are.
+	 *
+	 * @return The count, headers included.
+	 */
+	int rowCount() {
+		return displayCount;
+	}
+
+	/**
+	 * Return what a table row shows.
+	 *
+	 * @param row	The table row
+	 * @return The row's position, or a negative number for a header.
+	 */
+	int positionAt(int row) {
+		return displayRows[row];
+	}
+
+	/**
+	 * Return the group of the n'th position shown.
+	 *
+	 * @param sequence	The positions shown, or null for all of them
+	 * @param seq		Which one
+	 * @param order		Maps a position to our entry index, or null.
+	 * @return The group.
+	 */
+	private Group groupAt(int[] sequence, int seq, int[] order) {
+		int position = (sequence != null) ? sequence[seq] : seq;
+		return entries.get((order != null) ? order[position] : position).group;
+	}
+
+	/**
+	 * Is this table row a group header?
+	 *
+	 * @param row	The table row
+	 * @return True if so.
+	 */
+	boolean isHeader(int row) {
+		return displayRows[row] < 0;
+	}
+
+	/**
+	 * Return the table row showing the row at this position.
+	 *
+	 * @param position	Row position before grouping
+	 * @return The table row, or -1 if it's hidden.
+	 */
+	int viewIndex(int position) {
+		return (position < indexCount) ? Math.max(displayIndex[position], -1) : -1;
+	}
+
+	/**
+	 * Return the table row of the header for this row's group.
+	 *
+	 * @param index		The row's entry index
+	 * @return The table row, or -1 if it isn't shown.
+	 */
+	int headerRowFor(int index) {
+		Group group = entries.get(index).group;
+		int row = group.headerRow;
+		return (row >= 0 && row < displayCount && displayRows[row] < 0
+				&& displayGroups.get(~displayRows[row]) == group) ? row : -1;
+	}
+
+	/**
+	 * Return the group value a header row is for.
+	 *
+	 * @param row	The table row
+	 * @return The value.
+	 */
+	Object keyAt(int row) {
+		return displayGroups.get(~displayRows[row]).key;
+	}
+
+	/**
+	 * Build the text for a header row.
+	 *
+	 * @param row	The table row
+	 * @return One string per column.
+	 */
+	String[] headerText(int row) {
+		Group group = displayGroups.get(~displayRows[row]);
+		String[] text = new String[columns.size()];
+		Arrays.fill(text, "");
+		for (int index = 0; index < aggregated.length; ++index) {
+			TableViewColumn col = columns.get(aggregated[index]);
+			text[aggregated[index]] = formatNumber(group.aggregate(index, col.aggregate));
+		}
+		int labelColumn = Math.max(0, columns.indexOf(groupColumn));
+		text[labelColumn] = (group.expanded ? "- " : "+ ")
+				+ ((group.key == null) ? "" : group.key.toString())
+				+ " (" + group.members.size() + ")";
+		return text;
+	}
+
+	/**
+	 * Show or hide the rows in this group.
+	 *
+	 * @param key			The group value
+	 * @param expanded		True to show them
+	 */
+	void setExpanded(Object key, boolean expanded) {
+		if (expanded) {
+			collapsed.remove(key);
+		}
+		else {
+			collapsed.add(key);
+		}
+	}
+
+	/**
+	 * Show or hide the rows in every group.
+	 *
+	 * @param expanded		True to show them
+	 */
+	void setAllExpanded(boolean expanded) {
+		collapsed.clear();
+		if (!expanded) {
+			collapsed.addAll(groups.keySet());
+		}
+	}
+
+	/**
+	 * Are this group's rows shown?
+	 *
+	 * @param key	The group value
+	 * @return True if so.
+	 */
+	boolean isExpanded(Object key) {
+		return !collapsed.contains(key);
+	}
+
+	/**
+	 * Return the number of rows in this group.
+	 *
+	 * @param key	The group value
+	 * @return The count, or zero if there's no such group.
+	 */
+	int size(Object key) {
+		Group group = groups.get(key);
+		return (group == null) ? 0 : group.members.size();
+	}
+
+	/**
+	 * Return an aggregate for one column of one group.
+	 *
+	 * @param key		The group value
+	 * @param col		The column
+	 * @param which		One of the TableViewColumn.AGG_ values
+	 * @return The value, or NaN if there's no such group or column.
+	 */
+	double aggregate(Object key, TableViewColumn col, int which) {
+		Group group = groups.get(key);
+		int colNum = columns.indexOf(col);
+		for (int index = 0; group != null && index < aggregated.length; ++index) {
+			if (aggregated[index] == colNum) {
+				return group.aggregate(index, which);
+			}
+		}
+		return Double.NaN;
+	}
+
+	/**
+	 * Format a number for a header row.  Whole numbers don't get a ".0".
+	 *
+	 * @param value		The number
+	 * @return The text.
+	 */
+	private static String formatNumber(double value) {
+		if (Double.isNaN(value)) {
+			return "";
+		}
+		if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+			return Long.toString((long) value);
+		}
+		return Double.toString(value);
+	}
+
+	/**
+	 * One row's membership.
+	 */
+	private static class Entry {
+		Group		group;
+		double[]	values;
+		/** The group whose display counts this row, or null if it's filtered out. */
+		Group		shownIn;
+	}
+
+	/**
+	 * One group and its running totals, one slot per aggregated column.
+	 */
+	private static class Group {
+		/** Add the sums up again after this many rows have been taken out. */
+		static final int	RESUM_AFTER = 1024;
+
+		final Object		key;
+		final Set<Entry>	members = Collections.newSetFromMap(new IdentityHashMap<Entry,Boolean>());
+		final double[]		sum;
+		final int[]			count;
+		final double[]		min;
+		final double[]		max;
+		boolean				totalsValid = true;
+		int					subtracted = 0;
+		boolean				expanded = true;
+		int					ordinal;
+		int					shown;
+		int					headerRow = -1;
+
+		Group(Object _key, int columns) {
+			key = _key;
+			sum = new double[columns];
+			count = new int[columns];
+			min = new double[columns];
+			max = new double[columns];
+			Arrays.fill(min, Double.POSITIVE_INFINITY);
+			Arrays.fill(max, Double.NEGATIVE_INFINITY);
+		}
+
+		void add(Entry entry) {
+			for (int index = 0; index < sum.length; ++index) {
+				double value = entry.values[index];
+				if (!Double.isNaN(value)) {
+					sum[index] += value;
+					++count[index];
+					min[index] = Math.min(min[index], value);
+					max[index] = Math.max(max[index], value);
+				}
+			}
+		}
+
+		void subtract(Entry entry) {
+			for (int index = 0; index < sum.length; ++index) {
+				double value = entry.values[index];
+				if (!Double.isNaN(value)) {
+					sum[index] -= value;
+					--count[index];
+					if (value <= min[index] || value >= max[index]) {
+						totalsValid = false;
+					}
+				}
+			}
+			if (members.isEmpty()) {
+				Arrays.fill(sum, 0.0);
+				subtracted = 0;
+			}
+			else if (++subtracted >= RESUM_AFTER) {
+				totalsValid = false;
+			}
+		}
+
+		double aggregate(int index, int which) {
+			if (which == TableViewColumn.AGG_COUNT) {
+				return count[index];
+			}
+			if (count[index] == 0) {
+				return Double.NaN;
+			}
+			if (!totalsValid) {
+				recompute();
+			}
+			if (which == TableViewColumn.AGG_SUM) {
+				return sum[index];
+			}
+			if (which == TableViewColumn.AGG_MIN) {
+				return min[index];
+			}
+			if (which == TableViewColumn.AGG_MAX) {
+				return max[index];
+			}
+			return Double.NaN;
+		}
+
+		/**
+		 * A row holding a minimum or maximum left, or enough rows have left
+		 * that the sums may have drifted.  Look through the rows that are
+		 * left and work everything out again.
+		 */
+		void recompute() {
+			Arrays.fill(sum, 0.0);
+			Arrays.fill(min, Double.POSITIVE_INFINITY);
+			Arrays.fill(max, Double.NEGATIVE_INFINITY);
+			for (Entry entry : members) {
+				for (int index = 0; index < min.length; ++index) {
+					double value = entry.values[index];
+					if (!Double.isNaN(value)) {
+						sum[index] += value;
+						min[index] = Math.min(min[index], value);
+						max[index] = Math.max(max[index], value);
+					}
+				}
+			}
+			totalsValid = true;
+			subtracted = 0;
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package org.showpage.swtfoundation;
+
+import java.util.*;
+
+/**
+ * One load of rows into a TableView, started by TableView.loadData().
+ * The rows are pulled from an Iterator a slice at a time on the display
+ * thread, so you can watch them arrive, and cancel the rest.
+ */
+public class TableLoad {
+	final Iterator<?>		rows;
+	final Runnable			whenDone;
+	private volatile int		loaded = 0;
+	private volatile boolean	cancelled = false;
+	private volatile boolean	done = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param _rows			Where the rows come from
+	 * @param _whenDone		Run on the display thread when we're done, or null.
+	 */
+	TableLoad(Iterator<?> _rows, Runnable _whenDone) {
+		rows = _rows;
+		whenDone = _whenDone;
+	}
+
+	/**
+	 * Stop loading.  Rows already loaded stay in the table.  We finish,
+	 * and run whenDone, when our next slice comes round.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Were we cancelled?  Removing everything from the table, or giving
+	 * it a data source, cancels every load in progress.  whenDone runs
+	 * either way, so this is how it tells.
+	 *
+	 * @return True if so.
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Are we finished, one way or another?
+	 *
+	 * @return True if so.
+	 */
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Return how many rows we've loaded so far.
+	 *
+	 * @return The count.
+	 */
+	public int getLoadedCount() {
+		return loaded;
+	}
+
+	/**
+	 * Count one more row loaded.  Only called on the display thread.
+	 */
+	void rowLoaded() {
+		++loaded;
+	}
+
+	/**
+	 * Mark us finished.
+	 */
+	void finished() {
+		done = true;
+	}
+}
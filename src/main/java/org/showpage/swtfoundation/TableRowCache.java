@@ -0,0 +1,191 @@
+package org.showpage.swtfoundation;
+
+import java.util.*;
+
+import org.eclipse.swt.graphics.*;
+
+/**
+ * This class is used by TableView to remember the text it displayed for
+ * each row.  Once a row has been rendered, sorting and scrolling just
+ * reuse the strings.  An entry is thrown away when the row's object
+ * changes or leaves the table, and the whole cache is thrown away if any
+ * column's getter or formatter changes.
+ *
+ * Entries are keyed by identity, so they follow an object wherever it
+ * sorts to.
+ *
+ * We only keep the rows shown most recently -- enough for the visible
+ * window and some scrolling either side -- so scrolling through a huge
+ * table doesn't leave text cached for every row.  The entries are kept
+ * on a linked list, most recently used first, and the oldest goes when
+ * we're over capacity.  The links live in the entries themselves, so a
+ * lookup allocates nothing.
+ *
+ * If the ITableViewUser asks for it, we remember the row's colors, too.
+ */
+class TableRowCache {
+	/**
+	 * What we remember about one row.
+	 */
+	static class CachedRow {
+		String[]	text;
+		boolean		colorsValid;
+		int			colorsVersion;
+		Color		background;
+		Color		foreground;
+		Object		obj;
+		CachedRow	newer;
+		CachedRow	older;
+	}
+
+	private IdentityHashMap<Object,CachedRow>	rows = new IdentityHashMap<Object,CachedRow>();
+	private final CachedRow						newest = new CachedRow();	// List head; newest.older is the newest entry
+	private int									columnsVersion = 0;
+
+	/**
+	 * Constructor.
+	 */
+	TableRowCache() {
+		newest.newer = newest;
+		newest.older = newest;
+	}
+
+	/**
+	 * Return the cached row for this object, building it if needed.
+	 * 
+	 * @param obj		The object displayed in the row
+	 * @param columns	Our columns
+	 * @param capacity	The most rows to keep
+	 * @return The cached row.
+	 */
+	CachedRow get(Object obj, List<TableViewColumn> columns, int capacity) {
+		int version = 0;
+		for (TableViewColumn col : columns) {
+			version = version * 31 + col.formatVersion();
+		}
+		if (version != columnsVersion) {
+			clear();
+			columnsVersion = version;
+		}
+
+		CachedRow row = rows.get(obj);
+		if (row == null) {
+			row = new CachedRow();
+			row.obj = obj;
+			rows.put(obj, row);
+			while (rows.size() > Math.max(1, capacity)) {
+				CachedRow oldest = newest.newer;
+				unlink(oldest);
+				rows.remove(oldest.obj);
+			}
+		}
+		else {
+			unlink(row);
+		}
+		row.older = newest.older;
+		row.newer = newest;
+		newest.older.newer = row;
+		newest.older = row;
+		if (row.text == null) {
+			row.text = renderText(obj, columns);
+		}
+		return row;
+	}
+
+	/**
+	 * Render the text for every column of this object.
+	 * 
+	 * @param obj		The object displayed in the row
+	 * @param columns	Our columns
+	 * @return One string per column.
+	 */
+	static String[] renderText(Object obj, List<TableViewColumn> columns) {
+		String[] text = new String[columns.size()];
+		int index = 0;
+		for (TableViewColumn col : columns) {
+			Object val = col.getValue(obj);
+			text[index++] = (val == null) ? "" : val.toString();
+		}
+		return text;
+	}
+
+	/**
+	 * Make sure this row's cached colors are current.
+	 * 
+	 * @param row	The cached row
+	 * @param obj	The object displayed in the row
+	 * @param user	Who decides the colors
+	 */
+	static void updateColors(CachedRow row, Object obj, ITableViewUser user) {
+		int version = user.rowColorsVersion();
+		if (!row.colorsValid || row.colorsVersion != version) {
+			row.background = user.backgroundColorForRow(obj);
+			row.foreground = user.foregroundColorForRow(obj);
+			row.colorsVersion = version;
+			row.colorsValid = true;
+		}
+	}
+
+	/**
+	 * Forget the colors we cached for this object, but keep its text.
+	 * 
+	 * @param obj	The object
+	 */
+	void invalidateColors(Object obj) {
+		CachedRow row = rows.get(obj);
+		if (row != null) {
+			row.colorsValid = false;
+		}
+	}
+
+	/**
+	 * Forget all the colors we've cached.
+	 */
+	void invalidateAllColors() {
+		for (CachedRow row : rows.values()) {
+			row.colorsValid = false;
+		}
+	}
+
+	/**
+	 * This object has changed.  Forget what we had for it.
+	 * 
+	 * @param obj	The object
+	 */
+	void invalidate(Object obj) {
+		CachedRow row = rows.remove(obj);
+		if (row != null) {
+			unlink(row);
+		}
+	}
+
+	/**
+	 * Forget everything.
+	 */
+	void clear() {
+		rows.clear();
+		newest.newer = newest;
+		newest.older = newest;
+	}
+
+	/**
+	 * Return how many rows we're holding.
+	 * 
+	 * @return The count.
+	 */
+	int size() {
+		return rows.size();
+	}
+
+	/**
+	 * Take this entry off our list.
+	 * 
+	 * @param row	The entry
+	 */
+	private void unlink(CachedRow row) {
+		row.newer.older = row.older;
+		row.older.newer = row.newer;
+		row.newer = null;
+		row.older = null;
+	}
+}
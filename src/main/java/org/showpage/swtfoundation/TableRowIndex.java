@@ -0,0 +1,366 @@
+package org.showpage.swtfoundation;
+
+import java.util.*;
+
+/**
+ * This class is used by TableView to find the row an object lives in
+ * without scanning the data.  By default we look objects up by identity,
+ * which is what you want when the table holds the very objects you'll
+ * later pass to objectChanged().  If your code hands us equal-but-different
+ * instances, switch to equals-based lookups instead.
+ *
+ * Or give us an ITableRowKey, and we look objects up by their keys.  Then
+ * a new object finds the row of the old one it replaces.
+ *
+ * If an equals-based or keyed index holds duplicates, the last one
+ * indexed wins.
+ *
+ * Rows shift whenever something is inserted or removed ahead of them.
+ * Rather than rewrite every position after the change, we keep a short
+ * log of the shifts, and each position remembers how much of the log it
+ * has already seen.  A lookup applies the rest of the log to the position
+ * it has, which is a few comparisons per shift, and checks the row it
+ * lands on.  When the log fills up, or the rows are reordered wholesale,
+ * we remember that positions from the first change on can't be trusted,
+ * and rebuild that part the next time a lookup misses.
+ */
+class TableRowIndex {
+	/** How many shifts we keep before giving up on them. */
+	private static final int	MAX_SHIFTS = 256;
+
+	private boolean				byEquals;
+	private ITableRowKey		rowKey = null;
+	private Map<Object,Slot>	positions;
+	private int					validTo = 0;
+	private final int[]			shiftFrom = new int[MAX_SHIFTS];
+	private final int[]			shiftBy = new int[MAX_SHIFTS];
+	private int					shiftCount = 0;
+	private long				shiftBase = 0;
+	private int					lowestShift = Integer.MAX_VALUE;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param _byEquals		True to use equals() / hashCode() rather than identity.
+	 */
+	TableRowIndex(boolean _byEquals) {
+		byEquals = _byEquals;
+		positions = newMap();
+	}
+
+	/**
+	 * Are we indexing by equals()?
+	 * 
+	 * @return True for equals-based, false for identity.
+	 */
+	boolean isByEquals() {
+		return byEquals;
+	}
+
+	/**
+	 * Switch between identity and equals lookups and rebuild from this data.
+	 * 
+	 * @param _byEquals	True to use equals() / hashCode() rather than identity.
+	 * @param data		The rows, in order.
+	 */
+	void setByEquals(boolean _byEquals, List<Object> data) {
+		byEquals = _byEquals;
+		positions = newMap();
+		validTo = 0;
+		forgetShifts();
+		reindex(data, 0, data.size());
+	}
+
+	/**
+	 * Are we indexing by row key?
+	 * 
+	 * @return True if so.
+	 */
+	boolean isKeyed() {
+		return rowKey != null;
+	}
+
+	/**
+	 * Return what we're using for row keys.
+	 * 
+	 * @return The key, or null if we aren't using one.
+	 */
+	ITableRowKey getRowKey() {
+		return rowKey;
+	}
+
+	/**
+	 * Look rows up by this key, or stop, and rebuild from this data.
+	 * 
+	 * @param _rowKey	The row key, or null to go back to identity or equals()
+	 * @param data		The rows, in order.
+	 */
+	void setRowKey(ITableRowKey _rowKey, List<Object> data) {
+		rowKey = _rowKey;
+		positions = newMap();
+		validTo = 0;
+		forgetShifts();
+		reindex(data, 0, data.size());
+	}
+
+	/**
+	 * Return the row holding this object.
+	 * 
+	 * @param obj	The object
+	 * @param data	The rows, in order.
+	 * @return The row, or -1 if we don't have it.
+	 */
+	int indexOf(Object obj, List<Object> data) {
+		Object key = keyOf(obj);
+		Slot slot = positions.get(key);
+		if (slot != null) {
+			int index = positionOf(slot);
+			if (index >= 0 && index < data.size() && same(data.get(index), obj)) {
+				return index;
+			}
+		}
+		if (validTo < data.size()) {
+			reindex(data, validTo, data.size());
+			slot = positions.get(key);
+			if (slot != null) {
+				int index = positionOf(slot);
+				if (index >= 0 && index < data.size() && same(data.get(index), obj)) {
+					return index;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Record that this object lives in this row.
+	 * 
+	 * @param obj	The object
+	 * @param pos	Its row
+	 */
+	void put(Object obj, int pos) {
+		Object key = keyOf(obj);
+		Slot slot = positions.get(key);
+		if (slot == null) {
+			slot = new Slot();
+			positions.put(key, slot);
+		}
+		slot.pos = pos;
+		slot.seen = shiftBase + shiftCount;
+	}
+
+	/**
+	 * Record that this object was added as the last row.
+	 * 
+	 * @param obj	The object
+	 * @param pos	Its row, which is the last one.
+	 */
+	void append(Object obj, int pos) {
+		put(obj, pos);
+		if (pos == validTo) {
+			++validTo;
+		}
+	}
+
+	/**
+	 * Rows were inserted, and the rows from there on moved up.  The caller
+	 * puts the new rows.
+	 * 
+	 * @param from	Index of the first new row
+	 * @param count	How many rows were inserted
+	 */
+	void inserted(int from, int count) {
+		if (from <= validTo) {
+			validTo += count;
+		}
+		addShift(from, count);
+	}
+
+	/**
+	 * Rows were removed, and the rows after them moved down.  The caller
+	 * removes the objects that were in them.
+	 * 
+	 * @param from	Index the first removed row used to have
+	 * @param count	How many rows were removed
+	 */
+	void removed(int from, int count) {
+		if (from < validTo) {
+			validTo = Math.max(from, validTo - count);
+		}
+		addShift(from, -count);
+	}
+
+	/**
+	 * All these rows were removed, and the rest closed up behind them.
+	 * 
+	 * @param rows	The rows removed, by their old positions
+	 */
+	void removed(BitSet rows) {
+		int gone = 0;
+		for (int from = rows.nextSetBit(0); from >= 0; from = rows.nextSetBit(from)) {
+			int to = rows.nextClearBit(from);
+			removed(from - gone, to - from);
+			gone += to - from;
+			from = to;
+		}
+	}
+
+	/**
+	 * Rows from here on have moved.  We'll work out where they went the
+	 * next time we need to.
+	 * 
+	 * @param from	First row that moved
+	 */
+	void invalidateFrom(int from) {
+		if (from < validTo) {
+			validTo = from;
+		}
+	}
+
+	/**
+	 * Forget about this object.
+	 * 
+	 * @param obj	The object
+	 */
+	void remove(Object obj) {
+		positions.remove(keyOf(obj));
+	}
+
+	/**
+	 * Forget everything.
+	 */
+	void clear() {
+		positions.clear();
+		validTo = 0;
+		forgetShifts();
+	}
+
+	/**
+	 * Rows in this range have moved.  Record where they are now.
+	 * 
+	 * @param data		The rows, in order.
+	 * @param from		First row that moved
+	 * @param to		One past the last row that moved
+	 */
+	void reindex(List<Object> data, int from, int to) {
+		for (int index = from; index < to; ++index) {
+			put(data.get(index), index);
+		}
+		if (from <= validTo && to > validTo) {
+			validTo = to;
+		}
+	}
+
+	/**
+	 * Log a shift.  If the log is full, give up on it: positions from its
+	 * first change on are rebuilt when next needed, and those before it
+	 * were never moved by it.
+	 * 
+	 * @param from	Where the shift starts
+	 * @param by	How far rows move: positive for an insert, negative for a remove
+	 */
+	private void addShift(int from, int by) {
+		if (shiftCount == MAX_SHIFTS) {
+			invalidateFrom(lowestShift);
+			forgetShifts();
+		}
+		shiftFrom[shiftCount] = from;
+		shiftBy[shiftCount++] = by;
+		lowestShift = Math.min(lowestShift, from);
+	}
+
+	/**
+	 * Empty the shift log.  Positions that have seen part of it count as
+	 * having seen all of it.
+	 */
+	private void forgetShifts() {
+		shiftBase += shiftCount;
+		shiftCount = 0;
+		lowestShift = Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Work out where a position is now by applying the shifts it hasn't
+	 * seen yet.
+	 * 
+	 * @param slot	The position
+	 * @return Where it is now, or -1 if its row was removed.
+	 */
+	private int positionOf(Slot slot) {
+		int pos = slot.pos;
+		for (int index = (int) Math.max(0, slot.seen - shiftBase); index < shiftCount; ++index) {
+			int from = shiftFrom[index];
+			int by = shiftBy[index];
+			if (pos < from) {
+				continue;
+			}
+			if (by < 0 && pos < from - by) {
+				return -1;
+			}
+			pos += by;
+		}
+		return pos;
+	}
+
+	/**
+	 * Is the object in the row the one we're looking for?
+	 * 
+	 * @param inRow		What's actually in the row
+	 * @param obj		What we're looking for
+	 * @return True if they match by our lookup rules.
+	 */
+	private boolean same(Object inRow, Object obj) {
+		if (inRow == obj) {
+			return true;
+		}
+		if (rowKey != null) {
+			return inRow != null && Objects.equals(rowKey.rowKey(inRow), rowKey.rowKey(obj));
+		}
+		return byEquals && inRow != null && inRow.equals(obj);
+	}
+
+	/**
+	 * Return what we look this object up by.
+	 * 
+	 * @param obj	The object
+	 * @return Its row key, or the object itself.
+	 */
+	Object keyOf(Object obj) {
+		return (rowKey != null) ? rowKey.rowKey(obj) : obj;
+	}
+
+	/**
+	 * Return the keys of these objects, in a set that compares them the
+	 * way we do.
+	 * 
+	 * @param objs	The objects
+	 * @return Their keys, from keyOf().
+	 */
+	Set<Object> keysOf(Collection<?> objs) {
+		Set<Object> keys = Collections.newSetFromMap(this.<Boolean>newMap());
+		for (Object obj : objs) {
+			keys.add(keyOf(obj));
+		}
+		return keys;
+	}
+
+	/**
+	 * Create the map appropriate for our lookup mode.
+	 * 
+	 * @return An empty map.
+	 */
+	private <V> Map<Object,V> newMap() {
+		if (byEquals || rowKey != null) {
+			return new HashMap<Object,V>();
+		}
+		return new IdentityHashMap<Object,V>();
+	}
+
+	/**
+	 * Where an object is, as of some point in the shift log.
+	 */
+	private static class Slot {
+		int		pos;
+		long	seen;
+	}
+}
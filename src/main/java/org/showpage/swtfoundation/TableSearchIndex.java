@@ -0,0 +1,254 @@
+package org.showpage.swtfoundation;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * This class is used by TableView to find the rows whose text might
+ * contain a query without testing every row.  For every three-character
+ * run (trigram) in any column's text, we keep a list of the rows that
+ * contain it.  A row can only contain "abcd" if it's on the lists for
+ * both "abc" and "bcd", so intersecting those lists gives a short list
+ * of candidates.  The candidates still have to be tested, because the
+ * trigrams might come from different places in the text.
+ *
+ * Each row gets an id when it's indexed.  Ids only ever go up, so every
+ * postings list is a sorted int array and we intersect them with a
+ * merge.  Removing a row just forgets its id; the dead id is skipped
+ * until the index is rebuilt.  A changed row is removed and then indexed
+ * again with a new id.
+ *
+ * Trigrams never span two columns, and case is folded the same way as
+ * TableFilter folds it.  Queries shorter than three characters can't use
+ * the index.
+ *
+ * Getting a row's text calls its getters and formatters, which may not
+ * be safe to call from other threads.  So a background build is handed
+ * the text, pulled out by textOf() on the display thread, just as a
+ * background sort is handed its keys.  Only the indexing happens in the
+ * background.
+ */
+class TableSearchIndex {
+	/** The shortest query we can look up. */
+	static final int	MIN_QUERY = 3;
+
+	private final List<TableViewColumn>		columns;
+	private HashMap<Long,Postings>			postings = new HashMap<Long,Postings>();
+	private IdentityHashMap<Object,Integer>	ids = new IdentityHashMap<Object,Integer>();
+	private ArrayList<Object>				rows = new ArrayList<Object>();
+	private int								deadCount = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param _columns	The columns whose text we index
+	 */
+	TableSearchIndex(List<TableViewColumn> _columns) {
+		columns = _columns;
+	}
+
+	/**
+	 * Pull the text we index out of these rows.  Call this on the display
+	 * thread.
+	 *
+	 * @param _rows		The rows
+	 * @return Each row's text for each of our columns in turn, null where
+	 *			the value is null.
+	 */
+	String[] textOf(Object[] _rows) {
+		int width = columns.size();
+		String[] text = new String[_rows.length * width];
+		for (int index = 0; index < _rows.length; ++index) {
+			for (int col = 0; col < width; ++col) {
+				Object val = columns.get(col).getValue(_rows[index]);
+				text[index * width + col] = (val == null) ? null : val.toString();
+			}
+		}
+		return text;
+	}
+
+	/**
+	 * Index all these rows.  This is what we do in the background, so we
+	 * don't touch the rows themselves, only their text.
+	 *
+	 * @param _rows		The rows
+	 * @param text		Their text, from textOf()
+	 * @param cancelled	Set this to give up
+	 */
+	void addAll(Object[] _rows, String[] text, AtomicBoolean cancelled) {
+		int width = columns.size();
+		for (int index = 0; index < _rows.length; ++index) {
+			if (cancelled.get()) {
+				return;
+			}
+			add(_rows[index], text, index * width);
+		}
+		for (Postings list : postings.values()) {
+			list.trim();
+		}
+	}
+
+	/**
+	 * Index this row.  If it's already indexed, index it again.
+	 *
+	 * @param row	The row
+	 */
+	void add(Object row) {
+		add(row, textOf(new Object[] { row }), 0);
+	}
+
+	/**
+	 * Index this row's text.  If it's already indexed, index it again.
+	 *
+	 * @param row		The row
+	 * @param text		Text from textOf()
+	 * @param from		Where this row's text starts
+	 */
+	private void add(Object row, String[] text, int from) {
+		remove(row);
+		int id = rows.size();
+		rows.add(row);
+		ids.put(row, id);
+		for (int col = 0; col < columns.size(); ++col) {
+			String value = text[from + col];
+			if (value != null) {
+				for (int index = 0; index + MIN_QUERY <= value.length(); ++index) {
+					Long key = trigram(value, index);
+					Postings list = postings.get(key);
+					if (list == null) {
+						list = new Postings();
+						postings.put(key, list);
+					}
+					list.add(id);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forget this row.
+	 *
+	 * @param row	The row
+	 */
+	void remove(Object row) {
+		Integer id = ids.remove(row);
+		if (id != null) {
+			rows.set(id, null);
+			++deadCount;
+		}
+	}
+
+	/**
+	 * Have enough rows been removed that we ought to be rebuilt?
+	 *
+	 * @return True if at least half our ids are dead.
+	 */
+	boolean needsRebuild() {
+		return deadCount > 1024 && deadCount > ids.size();
+	}
+
+	/**
+	 * Return the rows that might contain this query.
+	 *
+	 * @param query		The text to look for
+	 * @return The candidates, or null if the query is too short to look up.
+	 */
+	List<Object> candidates(String query) {
+		if (query.length() < MIN_QUERY) {
+			return null;
+		}
+		ArrayList<Object> result = new ArrayList<Object>();
+		ArrayList<Postings> lists = new ArrayList<Postings>();
+		for (int index = 0; index + MIN_QUERY <= query.length(); ++index) {
+			Postings list = postings.get(trigram(query, index));
+			if (list == null) {
+				return result;
+			}
+			if (!lists.contains(list)) {
+				lists.add(list);
+			}
+		}
+
+		// Start with the shortest list so every step is cheap.
+		Collections.sort(lists, new Comparator<Postings>() {
+			public int compare(Postings p1, Postings p2) {
+				return Integer.compare(p1.size, p2.size);
+			}
+		});
+		int[] found = Arrays.copyOf(lists.get(0).ids, lists.get(0).size);
+		int count = found.length;
+		for (int index = 1; index < lists.size() && count > 0; ++index) {
+			count = intersect(found, count, lists.get(index));
+		}
+
+		for (int index = 0; index < count; ++index) {
+			Object row = rows.get(found[index]);
+			if (row != null) {
+				result.add(row);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Keep only the ids in found that are also on this list.
+	 *
+	 * @param found		Sorted ids.  Overwritten with the result.
+	 * @param count		How many of them there are
+	 * @param list		The list to intersect with
+	 * @return How many ids are left.
+	 */
+	private static int intersect(int[] found, int count, Postings list) {
+		int out = 0;
+		int other = 0;
+		for (int index = 0; index < count && other < list.size; ++index) {
+			int id = found[index];
+			while (other < list.size && list.ids[other] < id) {
+				++other;
+			}
+			if (other < list.size && list.ids[other] == id) {
+				found[out++] = id;
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Pack the three characters at this spot, case folded, into a key.
+	 *
+	 * @param text		The text
+	 * @param index		Where the trigram starts
+	 * @return The key.
+	 */
+	private static Long trigram(String text, int index) {
+		long key = TableFilter.fold(text.charAt(index));
+		key = (key << 16) | TableFilter.fold(text.charAt(index + 1));
+		key = (key << 16) | TableFilter.fold(text.charAt(index + 2));
+		return key;
+	}
+
+	/**
+	 * The ids of the rows holding one trigram, in increasing order.
+	 */
+	private static class Postings {
+		int[]	ids = new int[4];
+		int		size = 0;
+
+		void add(int id) {
+			// A row that repeats a trigram only goes on the list once.
+			if (size > 0 && ids[size - 1] == id) {
+				return;
+			}
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			ids[size++] = id;
+		}
+
+		void trim() {
+			if (size < ids.length) {
+				ids = Arrays.copyOf(ids, size);
+			}
+		}
+	}
+}
@@ -1,7 +1,14 @@
 package org.showpage.swtfoundation;
 
+import java.io.*;
 import java.lang.reflect.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
 import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
 
 import org.eclipse.swt.*;
 import org.eclipse.swt.dnd.*;
@@ -13,16 +20,126 @@ import org.eclipse.swt.widgets.*;
  * A wrapper around a table, used to provide additional
  * support as needed.
  *
+ * The table is always created with SWT.VIRTUAL.  We never create
+ * TableItems ourselves -- SWT hands us an SWT.SetData event for each
+ * row as it scrolls into view, and that's when we fill in the text.
+ * We remember which rows have been filled in so that, when the data
+ * moves around underneath us, we only need to clear those rows.
+ *
+ * Rows normally live in our data vector.  Alternatively, give us an
+ * ITableDataSource and we'll display straight from it.  In that case we
+ * never copy your rows; sorting just keeps an array of row indices.
+ *
+ * Clicking a header sorts on that column.  Shift-clicking another header
+ * adds it as a tie-breaker, so you can sort by last name and then first
+ * name.  Shift-clicking a column that's already in the sort flips it.
+ *
+ * setFilterText() hides rows whose text doesn't contain a query.  The
+ * table then shows an array of row positions rather than every row.
+ * On big tables, setSearchIndexEnabled() keeps a trigram index of the
+ * text so a filter only has to test rows that might match.
+ *
+ * setTopK() turns the table into a window on the first K rows in sort
+ * order.  Anything that doesn't make the cut is never stored.
+ *
+ * setGroupColumn() puts the rows under collapsible header rows, one per
+ * value of a column, with running totals for the other columns.
+ *
+ * Other threads shouldn't touch the table, but they can call
+ * postAddObject(), postRemoveObject() and postObjectChanged().  Those
+ * queue the work without blocking, and the display thread applies
+ * whatever has piled up as one batch, at most once per changeInterval.
+ *
+ * For a live tail of a log or event stream, display a
+ * RingBufferDataSource and turn on autoScroll.
+ *
+ * exportRows() writes what's showing to CSV or TSV in the background.
+ * loadData() adds a big collection a slice at a time, so the first rows
+ * show at once.
+ *
+ * Feeds that send a new immutable object for every update should call
+ * setRowKey().  Then a new object takes over its old version's row in
+ * place, rather than being added alongside it.
+ *
+ * We remember which rows are selected in a bitset of our own, moved along
+ * with the rows, so the same objects stay selected when the table is
+ * sorted, filtered or grouped.  A selected row the filter hides is still
+ * selected when it comes back.
  */
-public class TableView implements SelectionListener, DragSourceListener {
+public class TableView implements SelectionListener, DragSourceListener, Listener, ITableDataSourceListener {
 	public int						style = SWT.BORDER;
 	public Table					table;
 	public DragSource				tableDragSource;
 	public Vector<TableViewColumn>	columnInfo;
 	public Vector<Object>			data = new Vector<Object>();
-	public Vector<TableItem>		items = new Vector<TableItem>();
+
+	/** Batches with more adds or moved rows than this re-sort everything rather than inserting one by one. */
+	public int						incrementalLimit = 16;
+
+	/** Clicking a header on a table with more rows than this sorts in the background. Zero to never do so. */
+	public int						asyncSortThreshold = 50000;
+
+	/** Filtering a table with more rows than this happens in the background. Zero to never do so. */
+	public int						asyncFilterThreshold = 20000;
+
+	/** Changes posted from other threads are applied at most this often, in milliseconds. */
+	public int						changeInterval = 16;
+
+	/** We keep the text of this many recently shown rows.  Make it a few screenfuls. */
+	public int						rowCacheSize = 1000;
+
+	/** If the last row is showing when our data source adds rows, scroll so the new last row shows. */
+	public boolean					autoScroll = false;
+
+	/** autoSize() measures this many rows at the top, at the bottom, and at random in between. */
+	public int						autoSizeRows = 50;
+
+	/** loadData() adds rows for this long at a time, in milliseconds. */
+	public int						loadSliceMillis = 8;
+	private BitSet					materialized = new BitSet();
+	private TableRowIndex			rowIndex = new TableRowIndex(false);
+	private TableRowCache			rowCache = new TableRowCache();
+	private int						modCount = 0;
+	private int						changeCount = 0;
+	private AtomicBoolean			pendingSort = null;
+	private Set<Object>				sortDirty = Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+	private IdentityHashMap<Object,Object>	sortReplaced = new IdentityHashMap<Object,Object>();
+	private RowShifts				sortShifts = new RowShifts();
+	private boolean					dataSorted = false;
+	private boolean[]				sortedDirections = null;
+	private int						updateDepth = 0;
+	private ArrayList<Object>		pendingAdds = new ArrayList<Object>();
+	private ArrayList<Object>		pendingRemoves = new ArrayList<Object>();
+	private ArrayList<Object>		pendingChanges = new ArrayList<Object>();
+	private ITableDataSource		dataSource = null;
+	private int[]					sourceOrder = null;
+	private boolean					sourceResortPending = false;
 	private ITableViewUser			usingObject = null;
 	private TableViewColumn			sortColumn = null;
+	private ArrayList<TableViewColumn>	sortColumns = new ArrayList<TableViewColumn>();
+	private ArrayList<TableViewColumn>	lastSortColumns = new ArrayList<TableViewColumn>();
+	private SortKeys				lastSortKeys = null;
+	private TableFilter				filter = null;
+	private TableGroups				groups = null;
+	private String					filterText = "";
+	private AtomicBoolean			pendingFilter = null;
+	private Set<Object>				filterDirty = Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+	private RowShifts				filterShifts = new RowShifts();
+	private boolean					searchIndexEnabled = false;
+	private TableSearchIndex		searchIndex = null;
+	private AtomicBoolean			pendingIndex = null;
+	private ArrayList<Object>		indexDirty = new ArrayList<Object>();
+	private int						topK = 0;
+	private final TableChangeQueue	changeQueue = new TableChangeQueue();
+	private TableColumnSizer		columnSizer = null;
+	private boolean					autoSizing = false;
+	private ArrayList<TableLoad>	loads = new ArrayList<TableLoad>();
+	private Transfer[]				dragTransfers = new Transfer[0];
+	private ITableDragProvider		dragProvider = null;
+	private List<Object>			dragRows = null;
+	private HashMap<Transfer,Object>	dragPayloads = new HashMap<Transfer,Object>();
+	private BitSet					selected = new BitSet();
+	private List<Object>			selectedObjects = null;
 	private Object					selectionCallbackObject;
 	private Method					selectionCallbackMethod;
 	private Object					singleSelectionCallbackObject;
@@ -51,8 +168,9 @@ public class TableView implements SelectionListener, DragSourceListener {
 	 * @param _columns		A list of columns.
 	 */
 	public void initialize(Composite parent, Vector<TableViewColumn> _columns) {
-		table = new Table(parent, style);
+		table = new Table(parent, style | SWT.VIRTUAL);
 		table.addSelectionListener(this);
+		table.addListener(SWT.SetData, this);
 		columnInfo = _columns;
 		for (Enumeration<TableViewColumn> ptr = columnInfo.elements(); ptr.hasMoreElements(); ) {
 			TableViewColumn col = ptr.nextElement();
@@ -67,7 +185,11 @@ public class TableView implements SelectionListener, DragSourceListener {
 	}
 	
 	/**
-	 * Set up the callback when they double-click a row.
+	 * Set up the callback when they double-click a row.  If
+	 * callbackArgClass is List.class or Collection.class, the method is
+	 * called once with every selected object, in the read-only list from
+	 * getSelectedObjectsView().  Otherwise it's called once per selected
+	 * object.
 	 * 
 	 * @param callbackObject		Object to callback to.
 	 * @param callbackMethodName	Name of the method.
@@ -100,7 +222,10 @@ public class TableView implements SelectionListener, DragSourceListener {
 	}
 	
 	/**
-	 * Set up the callback when they single-click a row.
+	 * Set up the callback when they single-click a row.  As with
+	 * setupSelectionCallback(), pass List.class or Collection.class to be
+	 * called once with the whole selection.  Do that if the table allows
+	 * select-all on lots of rows.
 	 * 
 	 * @param callbackObject		Object to callback to.
 	 * @param callbackMethodName	Name of the method.
@@ -133,20 +258,60 @@ public class TableView implements SelectionListener, DragSourceListener {
 	}
 	
 	/**
-	 * Allow drag and drop.
+	 * Allow drag and drop of the selected rows as tab-separated text.
 	 * 
-	 * @param transfer	What we're dragging
+	 * @param transfer	What we're dragging: TextTransfer.getInstance().
 	 */
 	public void setupDragAndDrop(Transfer transfer)
 	{
-		tableDragSource = new DragSource(table, DND.DROP_COPY);
-		Transfer[] transferTypes = new Transfer[] { transfer };
-		tableDragSource.setTransfer(transferTypes);
-		tableDragSource.addDragListener(this);
+		setupDragAndDrop(null, new Transfer[] { transfer });
+	}
+	
+	/**
+	 * Allow drag and drop.  Every selected row is dragged.  Without an
+	 * ITableDragProvider, the only format we can produce is tab-separated
+	 * text, so pass TextTransfer.getInstance().
+	 * 
+	 * @param transfers	What we're dragging
+	 */
+	public void setupDragAndDrop(Transfer... transfers)
+	{
+		setupDragAndDrop(null, transfers);
+	}
+	
+	/**
+	 * Allow drag and drop, with your own code producing the data.  Offer
+	 * as many formats as you like; the drop target picks one.  Without a
+	 * provider, anything but a TextTransfer is left out, since SWT's other
+	 * transfers each want data we can't make for you.
+	 * 
+	 * @param provider	Produces the data for each format, or null.
+	 * @param transfers	What we're dragging
+	 */
+	public void setupDragAndDrop(ITableDragProvider provider, Transfer... transfers)
+	{
+		ArrayList<Transfer> offered = new ArrayList<Transfer>();
+		for (Transfer transfer : transfers) {
+			if (provider != null || transfer instanceof TextTransfer) {
+				offered.add(transfer);
+			}
+			else {
+				System.err.printf("TableView.setupDragAndDrop: %s needs an ITableDragProvider.\n", transfer.getClass().getSimpleName());
+			}
+		}
+		if (tableDragSource == null) {
+			tableDragSource = new DragSource(table, DND.DROP_COPY);
+			tableDragSource.addDragListener(this);
+		}
+		dragTransfers = offered.toArray(new Transfer[offered.size()]);
+		dragProvider = provider;
+		tableDragSource.setTransfer(dragTransfers);
 	}
 	
 	/**
-	 * Use after we have data so columns display with good widths.
+	 * Use after we have data so columns display with good widths.  This
+	 * measures every row, which takes a long time on a big table; see
+	 * autoSize().
 	 */
 	public void pack() {
 		TableColumn[] cols = table.getColumns();
@@ -156,6 +321,81 @@ public class TableView implements SelectionListener, DragSourceListener {
 		
 	}
 	
+	/**
+	 * Widen the columns to fit their text, judging from a sample of the
+	 * rows: the first and last autoSizeRows, and as many again picked at
+	 * random.  The measuring is done a slice at a time when the display
+	 * thread has nothing else to do, so this returns right away.
+	 */
+	public void autoSize() {
+		if (columnSizer == null) {
+			columnSizer = new TableColumnSizer(this);
+		}
+		columnSizer.measure();
+	}
+	
+	/**
+	 * Keep the columns wide enough for their text.  Whenever rows are
+	 * added or changed, we autoSize() again.  Columns only ever get wider.
+	 * 
+	 * @param on	True to keep sizing columns.
+	 */
+	public void setAutoSize(boolean on) {
+		autoSizing = on;
+		if (on) {
+			autoSize();
+		}
+	}
+	
+	/**
+	 * Are we keeping the columns wide enough for their text?
+	 * 
+	 * @return True if so.
+	 */
+	public boolean isAutoSize() {
+		return autoSizing;
+	}
+	
+	/**
+	 * New or changed rows have arrived.  If we're auto-sizing, take
+	 * another look at the column widths.
+	 */
+	private void rowsArrived() {
+		if (autoSizing) {
+			columnSizer.measure();
+		}
+	}
+	
+	/**
+	 * Pick the rows autoSize() measures.  Group headers are skipped.
+	 * 
+	 * @return The rows.
+	 */
+	Object[] autoSizeSample() {
+		int count = rowCount();
+		int ends = Math.max(0, autoSizeRows);
+		BitSet picked = new BitSet(count);
+		if (count <= ends * 3) {
+			picked.set(0, count);
+		}
+		else {
+			picked.set(0, ends);
+			picked.set(count - ends, count);
+			Random random = new Random();
+			for (int index = 0; index < ends; ++index) {
+				picked.set(ends + random.nextInt(count - 2 * ends));
+			}
+		}
+		ArrayList<Object> rows = new ArrayList<Object>(picked.cardinality());
+		for (int index = picked.nextSetBit(0); index >= 0; index = picked.nextSetBit(index + 1)) {
+			Object obj = rowAt(index);
+			if (obj != null) {
+				rows.add(obj);
+			}
+		}
+		return rows.toArray();
+	}
+	
 	/**
 	 * Add a vector of objects to this window.
 	 * 
@@ -163,270 +403,3106 @@ public class TableView implements SelectionListener, DragSourceListener {
 	 */
 	public void addData(Collection<?> _data)
 	{
+		if (!ownsData("addData")) {
+			return;
+		}
+		if (updateDepth > 0) {
+			pendingAdds.addAll(_data);
+			return;
+		}
+		if (rowIndex.isKeyed()) {
+			ArrayList<Object> adds = new ArrayList<Object>(_data);
+			ArrayList<Object> changes = new ArrayList<Object>();
+			keyAdds(adds, changes);
+			if (!changes.isEmpty()) {
+				objectsChanged(changes);
+			}
+			_data = adds;
+		}
+		if (topK > 0) {
+			for (Object obj : _data) {
+				offerTopK(obj);
+			}
+			return;
+		}
 		for (Object obj : _data) {
 			addUnsorted(obj);
 		}
-		sortByColumn(sortColumn, false);
+		if (sortDeferred()) {
+			showAppendedRows();
+			return;
+		}
+		table.setItemCount(rowCount());
+		sort();
 	}
 	
 	/**
-	 * Add the column, unsorted.  We'll sort it later.
+	 * Add these objects a slice at a time, so the first screenful shows
+	 * right away and the display stays responsive while the rest come in.
+	 * Each slice runs from asyncExec() and stops after loadSliceMillis.
 	 * 
-	 * @param obj A single object
+	 * If the table is sorted, rows show in the order they arrive until
+	 * the load is done, and then we sort once.  Anything you add yourself
+	 * during the load is treated the same way.
+	 * 
+	 * whenDone runs exactly once on the display thread, whether the load
+	 * finishes or is cancelled, so check load.isCancelled() if you care
+	 * which.  removeAll() and setDataSource() cancel every load in
+	 * progress, and their whenDone runs once the table has been cleared.
+	 * A load started while a data source is in use is cancelled right
+	 * away, and its whenDone still runs.
+	 * 
+	 * @param rows		The objects
+	 * @param whenDone	Run when the load is finished or cancelled, or null.
+	 * @return The load, which you can cancel.
 	 */
-	private void addUnsorted(Object obj)
+	public TableLoad loadData(Collection<?> rows, Runnable whenDone)
 	{
-		TableItem ti = new TableItem(table, 0);
-		ti.setData(obj);
-		setTableItemForObject(ti, obj);
-		data.addElement(obj);
-		items.addElement(ti);
-		table.setItemCount(data.size());
+		return loadData(rows.iterator(), whenDone);
 	}
 	
 	/**
-	 * Add an object to this window.
+	 * Add the objects in this stream a slice at a time.  The stream is
+	 * consumed on the display thread.
 	 * 
-	 * @param obj A single object
+	 * @param rows		The objects
+	 * @param whenDone	Run when the load is finished or cancelled, or null.
+	 * @return The load, which you can cancel.
 	 */
-	public void addObject(Object obj)
+	public TableLoad loadData(Stream<?> rows, Runnable whenDone)
 	{
-		addUnsorted(obj);
-		sortByColumn(sortColumn, false);
+		return loadData(rows.iterator(), whenDone);
 	}
 	
 	/**
-	 * Remove an object from this window.
+	 * Add the objects from this iterator a slice at a time.  The iterator
+	 * is only ever used on the display thread.
 	 * 
-	 * @param obj A single object
+	 * @param rows		The objects
+	 * @param whenDone	Run when the load is finished or cancelled, or null.
+	 * @return The load, which you can cancel.
 	 */
-	public void removeObject(Object obj)
+	public TableLoad loadData(Iterator<?> rows, Runnable whenDone)
 	{
-		int index = data.indexOf(obj);
-		
-		if (index >= 0)
-		{
-			data.remove(index);
-			items.remove(index);
-			table.remove(index);
+		final TableLoad load = new TableLoad(rows, whenDone);
+		if (!ownsData("loadData")) {
+			load.cancel();
+			table.getDisplay().asyncExec(new Runnable() {
+				public void run() {
+					endLoad(load);
+				}
+			});
+			return load;
+		}
+		if (loads.isEmpty()) {
+			dataSorted = false;
 		}
+		loads.add(load);
+		// Just enough to fill the window now; the rest when we're idle.
+		loadSlice(load, Math.max(visibleRowCount(), 100));
+		return load;
 	}
 	
 	/**
-	 * Clear the table.
+	 * Add the next slice of a load, and schedule the one after.
+	 * 
+	 * @param load		The load
+	 * @param limit		The most rows to add this time
 	 */
-	public void removeAll()
+	private void loadSlice(final TableLoad load, int limit)
 	{
-		data.removeAllElements();
-		items.removeAllElements();
-		table.setItemCount(0);
+		boolean more = false;
+		if (!load.isCancelled() && !table.isDisposed()) {
+			long stop = System.currentTimeMillis() + loadSliceMillis;
+			try {
+				for (int count = 0; count < limit && load.rows.hasNext(); ++count) {
+					Object obj = load.rows.next();
+					if (updateDepth > 0) {
+						pendingAdds.add(obj);
+					}
+					else if (rowIndex.isKeyed() && rowIndex.indexOf(obj, data) >= 0) {
+						objectChanged(obj);
+					}
+					else if (topK > 0) {
+						offerTopK(obj);
+					}
+					else {
+						addUnsorted(obj);
+					}
+					load.rowLoaded();
+					if ((count & 255) == 255 && System.currentTimeMillis() >= stop) {
+						break;
+					}
+				}
+				more = load.rows.hasNext();
+			}
+			catch (Exception ex) {
+				System.err.printf("Exception: %s", ex.getMessage());
+				ex.printStackTrace();
+			}
+			if (topK == 0) {
+				showAppendedRows();
+			}
+		}
+		if (more) {
+			table.getDisplay().asyncExec(new Runnable() {
+				public void run() {
+					loadSlice(load, Integer.MAX_VALUE);
+				}
+			});
+			return;
+		}
+		endLoad(load);
 	}
 	
 	/**
-	 * Set the fields in this TableItem to properly display this object.
+	 * A load is over.  If it was the last one running, sort what it
+	 * brought in, and tell whoever started it.  Does nothing if the load
+	 * has already ended.
 	 * 
-	 * @param ti	TableItem
-	 * @param obj	The object we're displaying
+	 * @param load		The load
 	 */
-	private void setTableItemForObject(TableItem ti, Object obj) {
-		int index = 0;
-		for (Enumeration<TableViewColumn> ptr = columnInfo.elements(); ptr.hasMoreElements(); ) {
-			TableViewColumn col = ptr.nextElement();
-			Object val = col.getValue(obj);
-			if (val == null) {
-				ti.setText(index++, "");
-			}
-			else {
-				ti.setText(index++, val.toString());
-			}
-			if (usingObject != null) {
-				Color background = usingObject.backgroundColorForRow(obj);
-				Color foreground = usingObject.foregroundColorForRow(obj);
-				if (background != null) {
-					ti.setBackground(background);
-				}
-				if (foreground != null) {
-					ti.setForeground(foreground);
+	private void endLoad(TableLoad load)
+	{
+		if (load.isDone()) {
+			return;
+		}
+		load.finished();
+		if (loads.remove(load) && loads.isEmpty() && !table.isDisposed()
+				&& sortColumn != null && topK == 0) {
+			resort();
+		}
+		if (load.whenDone != null) {
+			load.whenDone.run();
+		}
+	}
+	
+	/**
+	 * Cancel every load in progress.  They're no longer running as far as
+	 * sorting is concerned, and each one ends from asyncExec(), so its
+	 * whenDone runs after our caller has finished with the table.  Slices
+	 * already queued find their load cancelled and do nothing.
+	 */
+	private void cancelLoads()
+	{
+		for (final TableLoad load : loads) {
+			load.cancel();
+			table.getDisplay().asyncExec(new Runnable() {
+				public void run() {
+					endLoad(load);
 				}
-			}
+			});
 		}
+		loads.clear();
 	}
 	
 	/**
-	 * We need to be able to make some callbacks to whoever is using
-	 * us.  Currently, this is only for setting foreground and background
-	 * colors based on the objects we're displaying, but we could end up
-	 * with action methods and other cool stuff.
-	 * 
-	 * @param user This is probably our container.
+	 * Rows were added at the end without sorting.  Show them.
 	 */
-	public void setUser(ITableViewUser user) {
-		usingObject = user;
+	private void showAppendedRows()
+	{
+		if (isLayered()) {
+			showRows();
+		}
+		else {
+			table.setItemCount(rowCount());
+		}
 	}
 	
 	/**
-	 * Something has happened to this object.
+	 * Add the object, unsorted.  We'll sort it later.  The caller is
+	 * responsible for updating the table's item count.
 	 * 
-	 * @param obj The value changed
+	 * @param obj A single object
 	 */
-	public void objectChanged(Object obj) {
-		int index = data.indexOf(obj);
-		if (index >= 0) {
-			TableItem ti = (TableItem)items.elementAt(index);
-			setTableItemForObject(ti, obj);
+	private void addUnsorted(Object obj)
+	{
+		++modCount;
+		lastSortKeys = null;
+		rowIndex.append(obj, data.size());
+		data.addElement(obj);
+		indexRow(obj);
+		rowsArrived();
+		if (pendingFilter != null) {
+			filterDirty.add(obj);
+		}
+		if (groups != null) {
+			groups.insert(data.size() - 1, obj);
+		}
+		if (filter != null && filter.test(obj, columnInfo)) {
+			filter.matches.set(data.size() - 1);
 		}
 	}
-
+	
 	/**
-	 * Double-clicked a column.
+	 * Add an object to this window.  If we have a row key and already
+	 * have a row with this object's key, the object replaces that row.
 	 * 
-	 * @param event We get the widget from this.
+	 * @param obj A single object
 	 */
-	public void widgetDefaultSelected(SelectionEvent event) {
-		Widget widget = event.widget;
-		if (widget instanceof Table) {
-			int[] selection = table.getSelectionIndices();
-			if (selection == null)
-			{
-			}
-			else
-			{
-				for (int index = 0; index < selection.length; ++index)
-				{
-					if (selectionCallbackMethod != null)
-					{
-						try
-						{
-							Object selectedObject = data.elementAt(selection[index]);
-							selectionCallbackMethod.invoke(selectionCallbackObject, selectedObject);
-						}
-						catch (Exception ex)
-						{
-							System.err.printf("Exception: %s", ex.getMessage());
-							ex.printStackTrace();
-						}
-					}
-				}
-			}
+	public void addObject(Object obj)
+	{
+		if (!ownsData("addObject")) {
+			return;
+		}
+		if (updateDepth > 0) {
+			pendingAdds.add(obj);
+			return;
+		}
+		if (rowIndex.isKeyed() && rowIndex.indexOf(obj, data) >= 0) {
+			objectChanged(obj);
+		}
+		else if (topK > 0) {
+			offerTopK(obj);
+		}
+		else if (isSorted()) {
+			insertSorted(obj);
+		}
+		else if (sortDeferred()) {
+			addUnsorted(obj);
+			showAppendedRows();
+		}
+		else {
+			addUnsorted(obj);
+			table.setItemCount(rowCount());
+			sort();
 		}
 	}
-
+	
 	/**
-	 * Something was selected, probably a header column.
+	 * Keep only the first k rows in sort order.  Once we have k rows, a new
+	 * row is compared with the last one; if it doesn't sort ahead of it,
+	 * we drop it without touching the table, and if it does, it goes in
+	 * and the last row is evicted.  A row we don't hold that you pass to
+	 * objectChanged() gets the same chance to get in.
+	 *
+	 * Rows that have been evicted are forgotten, so removing a row leaves
+	 * a gap until something new makes the cut.  Sorting on another column
+	 * reorders the rows we hold, and new rows are ranked the new way.
 	 * 
-	 * @param event We get the widget from this.
+	 * @param k		How many rows to keep, or zero to keep everything.
 	 */
-	public void widgetSelected(SelectionEvent event) {
-		Widget widget = event.widget;
-		if (widget instanceof TableColumn) {
-			TableColumn tCol = (TableColumn)widget;
-			int colNum = table.indexOf(tCol);
-			TableViewColumn tvc = columnInfo.elementAt(colNum);
-			sortByColumn(tvc, true);
+	public void setTopK(int k)
+	{
+		if (!ownsData("setTopK")) {
+			return;
 		}
-		else if (widget instanceof Table) {
-			int[] selection = table.getSelectionIndices();
-			if (selection == null)
-			{
-			}
-			else
-			{
-				for (int index = 0; index < selection.length; ++index)
-				{
-					if (singleSelectionCallbackMethod != null)
-					{
-						try
-						{
-							Object selectedObject = data.elementAt(selection[index]);
-							singleSelectionCallbackMethod.invoke(singleSelectionCallbackObject, selectedObject);
-						}
-						catch (Exception ex)
-						{
-							System.err.printf("Exception: %s", ex.getMessage());
-							ex.printStackTrace();
-						}
-					}
-				}
+		topK = Math.max(0, k);
+		if (topK > 0) {
+			if (!isSorted()) {
+				sort();
 			}
+			trimToTopK();
 		}
 	}
 	
 	/**
-	 * Return the selected objects.
+	 * Return how many rows we keep.
 	 * 
-	 * @return List of selected objects.
+	 * @return The limit, or zero if there isn't one.
 	 */
-	public ArrayList<Object> getSelectedObjects() {
-		ArrayList<Object> selected = new ArrayList<Object>();
-		int[] selection = table.getSelectionIndices();
-		if (selection != null) {
-			for (int index = 0; index < selection.length; ++index)
-			{
-				Object selectedObject = data.elementAt(selection[index]);
-				selected.add(selectedObject);
-			}
-		}
-		return selected;
+	public int getTopK()
+	{
+		return topK;
 	}
 	
 	/**
-	 * Sort the data for this column.
+	 * Add this object if it's one of the top k.
 	 * 
-	 * @param tvc	Column to sort on
-	 * @param reverseDirection	True to sort biggest to smallest.
+	 * @param obj A single object
 	 */
-	private void sortByColumn(TableViewColumn tvc, boolean reverseDirection)
+	private void offerTopK(Object obj)
 	{
-		if (tvc == null)
-		{
-			tvc = columnInfo.elementAt(0);
+		if (!isSorted()) {
+			sort();
 		}
-		if (reverseDirection && (sortColumn == tvc))
-		{
-			// Reverse sort if they resort on the currently sorting column.
-			tvc.sortAscending = !tvc.sortAscending;
+		if (data.size() >= topK && compareToRow(sortKeys(obj), data.lastElement()) >= 0) {
+			return;
 		}
-		sortColumn = tvc;
-		
-		Object[] dataArray = data.toArray();
-		Arrays.sort(dataArray, tvc);
-		for (int index = 0; index < dataArray.length; ++index) {
-			data.set(index, dataArray[index]);
-			setTableItemForObject(items.elementAt(index), dataArray[index]);
+		insertSorted(obj);
+		trimToTopK();
+	}
+	
+	/**
+	 * Evict any rows past the first k.
+	 */
+	private void trimToTopK()
+	{
+		if (topK > 0 && data.size() > topK) {
+			BitSet evicted = new BitSet();
+			evicted.set(topK, data.size());
+			removeRows(evicted);
 		}
 	}
-
+	
 	/**
-	 * Drag and drop has completed.
+	 * Is data currently in sortColumns order?  If so, we can add and move
+	 * single rows with a binary search rather than sorting everything.
 	 * 
-	 * @param event ignored
+	 * @return True if it is.
 	 */
-	public void dragFinished(DragSourceEvent event) {
+	private boolean isSorted()
+	{
+		return dataSorted && (sortColumn != null) && (pendingSort == null)
+				&& Arrays.equals(sortDirections(), sortedDirections);
 	}
-
+	
 	/**
-	 * Drag and drop is in progress.
+	 * Is a sort on its way that will put new rows in their places?  One is
+	 * if we're sorting in the background, or a load sorts when it's done.
 	 * 
-	 * @param event ignored
+	 * @return True if so.
 	 */
-	public void dragSetData(DragSourceEvent event) {
-		if (table.getSelectionCount() > 0)
-		{
-			//int[] indexes = table.getSelectionIndices();
-			//Object obj = data.elementAt(indexes[0]);
-			//event.data = data.elementAt(indexes[0]);
+	private boolean sortDeferred()
+	{
+		return pendingSort != null || !loads.isEmpty();
+	}
+	
+	/**
+	 * Return the direction of each column we sort on.
+	 * 
+	 * @return True for each ascending column.
+	 */
+	private boolean[] sortDirections()
+	{
+		boolean[] directions = new boolean[sortColumns.size()];
+		for (int index = 0; index < directions.length; ++index) {
+			directions[index] = sortColumns.get(index).sortAscending;
 		}
+		return directions;
 	}
-
+	
 	/**
-	 * Drag and drop has begun.
+	 * Return this object's value for each column we sort on.
 	 * 
-	 * @param event We allow it only if we have selected objects to drag.
+	 * @param obj	The object
+	 * @return Its keys, primary first.
 	 */
-	public void dragStart(DragSourceEvent event) {
-		if (table.getSelectionCount() > 0)
-		{
-			event.doit = true;
+	private Object[] sortKeys(Object obj)
+	{
+		Object[] keys = new Object[sortColumns.size()];
+		for (int index = 0; index < keys.length; ++index) {
+			keys[index] = sortColumns.get(index).getValue(obj);
+		}
+		return keys;
+	}
+	
+	/**
+	 * Compare a row's keys to another row.  We only fetch the other row's
+	 * secondary values if the primary ones tie.
+	 * 
+	 * @param keys	Keys from sortKeys()
+	 * @param obj	The row to compare to
+	 * @return The usual negative, zero or positive.
+	 */
+	private int compareToRow(Object[] keys, Object obj)
+	{
+		for (int index = 0; index < keys.length; ++index) {
+			TableViewColumn col = sortColumns.get(index);
+			int retVal = col.compareKeys(keys[index], col.getValue(obj));
+			if (retVal != 0) {
+				return retVal;
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * Insert this object where it belongs in the sorted data.  Finding the
+	 * spot is a binary search; the only UI work is clearing the rows SWT
+	 * has already filled in from that point on.
+	 * 
+	 * @param obj A single object
+	 */
+	private void insertSorted(Object obj)
+	{
+		int pos = insertionPoint(sortKeys(obj), 0, data.size());
+		++modCount;
+		lastSortKeys = null;
+		data.insertElementAt(obj, pos);
+		rowIndex.inserted(pos, 1);
+		rowIndex.put(obj, pos);
+		indexRow(obj);
+		rowsArrived();
+		if (pendingFilter != null) {
+			filterDirty.add(obj);
+		}
+		if (filter != null) {
+			filter.insert(pos, 1);
+			if (filter.test(obj, columnInfo)) {
+				filter.matches.set(pos);
+			}
+		}
+		if (groups != null) {
+			groups.insert(pos, obj);
+		}
+		if (!selected.isEmpty()) {
+			RowBits.insert(selected, pos, 1);
+		}
+		if (isLayered()) {
+			showRowsFrom(layInsertedRow(pos));
+		}
+		else {
+			table.setItemCount(data.size());
+			refreshRows(pos);
+			showSelection();
+		}
+	}
+	
+	/**
+	 * Find where a row with this key belongs within data[low..high).  Equal
+	 * keys go after the rows already there, just as a stable sort would
+	 * leave them.
+	 * 
+	 * @param keys	The row's keys, from sortKeys()
+	 * @param low	First candidate row
+	 * @param high	One past the last candidate row
+	 * @return The row index to insert at.
+	 */
+	private int insertionPoint(Object[] keys, int low, int high)
+	{
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (compareToRow(keys, data.elementAt(mid)) < 0) {
+				high = mid;
+			}
+			else {
+				low = mid + 1;
+			}
+		}
+		return low;
+	}
+	
+	/**
+	 * Is this row still in the right place relative to its neighbors?
+	 * 
+	 * @param index	The row
+	 * @return True if nothing needs to move.
+	 */
+	private boolean inSortedPosition(int index)
+	{
+		Object[] keys = sortKeys(data.elementAt(index));
+		if (index > 0 && compareToRow(keys, data.elementAt(index - 1)) < 0) {
+			return false;
+		}
+		if (index + 1 < data.size() && compareToRow(keys, data.elementAt(index + 1)) > 0) {
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * This row's sort key changed.  Move it to where it now belongs.
+	 * 
+	 * @param index	The row
+	 */
+	private void moveSorted(int index)
+	{
+		int first = isLayered() ? layRemovedRow(index) : 0;
+		Object obj = data.remove(index);
+		int pos = insertionPoint(sortKeys(obj), 0, data.size());
+		lastSortKeys = null;
+		data.insertElementAt(obj, pos);
+		rowIndex.removed(index, 1);
+		rowIndex.inserted(pos, 1);
+		rowIndex.put(obj, pos);
+		if (filter != null) {
+			filter.remove(index, 1);
+			filter.insert(pos, 1);
+			if (filter.test(obj, columnInfo)) {
+				filter.matches.set(pos);
+			}
+		}
+		if (groups != null) {
+			groups.move(index, pos);
+		}
+		if (!selected.isEmpty()) {
+			RowBits.move(selected, index, pos);
+		}
+		if (isLayered()) {
+			int inserted = layInsertedRow(pos);
+			showRowsFrom((first < 0 || inserted < 0) ? -1 : Math.min(first, inserted));
+		}
+		else {
+			refreshRows(Math.min(index, pos), Math.max(index, pos));
+			showSelection();
+		}
+	}
+	
+	/**
+	 * Remove an object from this window.
+	 * 
+	 * @param obj A single object
+	 */
+	public void removeObject(Object obj)
+	{
+		if (!ownsData("removeObject")) {
+			return;
+		}
+		if (updateDepth > 0) {
+			if (!pendingAdds.remove(obj)) {
+				pendingRemoves.add(obj);
+			}
+			return;
+		}
+		int index = rowIndex.indexOf(obj, data);
+		
+		if (index >= 0)
+		{
+			++modCount;
+			lastSortKeys = null;
+			int first = isLayered() ? layRemovedRow(index) : 0;
+			Object removed = data.remove(index);
+			rowIndex.remove(removed);
+			rowCache.invalidate(removed);
+			unindexRow(removed);
+			rowIndex.removed(index, 1);
+			if (filter != null) {
+				filter.remove(index, 1);
+			}
+			if (groups != null) {
+				groups.remove(index);
+			}
+			if (!selected.isEmpty()) {
+				RowBits.remove(selected, index, 1);
+				selectedObjects = null;
+			}
+			if (isLayered()) {
+				showRowsFrom(first);
+			}
+			else {
+				// SWT moves its own selection along with the items.
+				table.remove(index);
+				removeMaterializedRow(index);
+			}
+		}
+	}
+	
+	/**
+	 * Clear the table.
+	 */
+	public void removeAll()
+	{
+		if (!ownsData("removeAll")) {
+			return;
+		}
+		cancelLoads();
+		pendingAdds.clear();
+		pendingRemoves.clear();
+		pendingChanges.clear();
+		++modCount;
+		lastSortKeys = null;
+		data.removeAllElements();
+		rowIndex.clear();
+		rowCache.clear();
+		clearSelection();
+		if (filter != null) {
+			filter.matches.clear();
+			filter.clearViewRows();
+		}
+		if (groups != null) {
+			groups.reset(new Object[0]);
+			groups.buildDisplay(null, 0, 0, null);
+		}
+		if (searchIndexEnabled) {
+			cancelPendingIndex();
+			searchIndex = new TableSearchIndex(new ArrayList<TableViewColumn>(columnInfo));
+		}
+		table.setItemCount(0);
+		materialized.clear();
+	}
+	
+	/**
+	 * Display rows from this source rather than from our data vector.
+	 * Anything in the data vector is discarded.  While a source is in use,
+	 * change your rows through the source, not through addObject() and
+	 * friends.  Pass null to go back to using the data vector.
+	 * 
+	 * @param source	The rows to display, or null.
+	 */
+	public void setDataSource(ITableDataSource source)
+	{
+		if (dataSource != null) {
+			dataSource.removeListener(this);
+		}
+		cancelLoads();
+		cancelPendingSort();
+		++modCount;
+		lastSortKeys = null;
+		data.removeAllElements();
+		rowIndex.clear();
+		rowCache.clear();
+		clearSelection();
+		pendingAdds.clear();
+		pendingRemoves.clear();
+		pendingChanges.clear();
+		dataSource = source;
+		sourceOrder = null;
+		dataSorted = false;
+		filter = null;
+		searchIndex = null;
+		if (searchIndexEnabled) {
+			buildSearchIndex();
+		}
+		if (dataSource != null) {
+			dataSource.addListener(this);
+			rowsArrived();
+		}
+		if (groups != null) {
+			groups.reset(snapshotRows());
+			showRows();
+		}
+		else {
+			refreshRows(0);
+			table.setItemCount(rowCount());
+		}
+		if (sortColumn != null && baseCount() > 0) {
+			resort();
+		}
+		refilter();
+	}
+	
+	/**
+	 * Return the source we're displaying from.
+	 * 
+	 * @return The source, or null if we're using our data vector.
+	 */
+	public ITableDataSource getDataSource()
+	{
+		return dataSource;
+	}
+	
+	/**
+	 * Are we displaying our own data vector?  If not, complain.
+	 * 
+	 * @param what	The method being called, for the complaint.
+	 * @return True if we own our data.
+	 */
+	private boolean ownsData(String what)
+	{
+		if (dataSource != null) {
+			System.err.printf("TableView.%s: not supported with an ITableDataSource. Change the source instead.\n", what);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Return the number of rows displayed.
+	 * 
+	 * @return The count.
+	 */
+	private int rowCount()
+	{
+		if (groups != null) {
+			return groups.rowCount();
+		}
+		return (filter != null) ? filter.viewCount : baseCount();
+	}
+	
+	/**
+	 * Return the object displayed in this row.
+	 * 
+	 * @param row	The row index
+	 * @return The object, or null if it's a group header.
+	 */
+	private Object rowAt(int row)
+	{
+		int position = basePosition(row);
+		return (position >= 0) ? baseAt(position) : null;
+	}
+	
+	/**
+	 * Return the position before filtering of the row displayed here.
+	 * 
+	 * @param row	The row index
+	 * @return The position, or a negative number if it's a group header.
+	 */
+	private int basePosition(int row)
+	{
+		if (groups != null) {
+			return groups.positionAt(row);
+		}
+		return (filter != null) ? filter.viewRows[row] : row;
+	}
+	
+	/**
+	 * Are we showing something other than one table row per row: filtered,
+	 * grouped, or both?
+	 * 
+	 * @return True if so.
+	 */
+	private boolean isLayered()
+	{
+		return filter != null || groups != null;
+	}
+	
+	/**
+	 * Return the number of rows before filtering.
+	 * 
+	 * @return The count.
+	 */
+	private int baseCount()
+	{
+		return (dataSource != null) ? dataSource.size() : data.size();
+	}
+	
+	/**
+	 * Return the object at this position before filtering.
+	 * 
+	 * @param position	Row position, in sorted order
+	 * @return The object.
+	 */
+	private Object baseAt(int position)
+	{
+		if (dataSource == null) {
+			return data.elementAt(position);
+		}
+		return dataSource.get((sourceOrder != null) ? sourceOrder[position] : position);
+	}
+	
+	/**
+	 * Return the table row showing the row at this position.
+	 * 
+	 * @param position	Row position before filtering
+	 * @return The table row, or -1 if the filter hides it or its group is collapsed.
+	 */
+	private int viewIndex(int position)
+	{
+		if (position < 0) {
+			return position;
+		}
+		if (groups != null) {
+			return groups.viewIndex(position);
+		}
+		return (filter != null) ? filter.viewIndex(position) : position;
+	}
+	
+	/**
+	 * Return the index the filter and groups use for the row at this
+	 * position: the same position for our own data, or the source index.
+	 * 
+	 * @param position	Row position before filtering
+	 * @return The index.
+	 */
+	private int snapshotIndex(int position)
+	{
+		return (dataSource != null && sourceOrder != null) ? sourceOrder[position] : position;
+	}
+	
+	/**
+	 * Our data source says these rows have new values.
+	 * 
+	 * @param source	The source
+	 * @param from		First row that changed
+	 * @param count		How many rows changed
+	 */
+	public void rowsChanged(ITableDataSource source, int from, int count)
+	{
+		if (source != dataSource) {
+			return;
+		}
+		lastSortKeys = null;
+		++changeCount;
+		selectedObjects = null;
+		rowsArrived();
+		if (pendingFilter != null) {
+			filterShifts.changed(from, count);
+		}
+		if (isLayered()) {
+			for (int index = from; index < from + count; ++index) {
+				Object obj = dataSource.get(index);
+				if (filter != null) {
+					filter.matches.set(index, filter.test(obj, columnInfo));
+				}
+				if (groups != null) {
+					groups.update(index, obj);
+				}
+			}
+			showRows();
+			if (sourceOrder != null) {
+				scheduleSourceResort();
+			}
+		}
+		else if (sourceOrder == null) {
+			refreshRows(from, from + count - 1);
+		}
+		else {
+			// We don't know where these rows sorted to, so redisplay what
+			// we've shown and sort again shortly.
+			refreshRows(0);
+			scheduleSourceResort();
+		}
+	}
+	
+	/**
+	 * Our data source inserted rows.  If we're sorted, the new rows go at
+	 * the bottom for now, and we sort again shortly.
+	 * 
+	 * @param source	The source
+	 * @param from		Index of the first new row
+	 * @param count		How many rows were inserted
+	 */
+	public void rowsInserted(ITableDataSource source, int from, int count)
+	{
+		if (source != dataSource) {
+			return;
+		}
+		boolean follow = autoScroll && isLastRowShowing();
+		rowsArrived();
+		++modCount;
+		lastSortKeys = null;
+		if (pendingFilter != null) {
+			filterShifts.inserted(from, count);
+		}
+		if (pendingSort != null) {
+			sortShifts.inserted(from, count);
+		}
+		if (filter != null) {
+			filter.insert(from, count);
+		}
+		if (!selected.isEmpty()) {
+			RowBits.insert(selected, from, count);
+		}
+		for (int index = from; isLayered() && index < from + count; ++index) {
+			Object obj = dataSource.get(index);
+			if (filter != null && filter.test(obj, columnInfo)) {
+				filter.matches.set(index);
+			}
+			if (groups != null) {
+				groups.insert(index, obj);
+			}
+		}
+		if (sourceOrder != null) {
+			sourceOrder = RowShifts.insert(sourceOrder, from, count);
+			scheduleSourceResort();
+			from = 0;
+		}
+		if (isLayered()) {
+			showRows();
+		}
+		else {
+			table.setItemCount(rowCount());
+			refreshRows(from);
+			showSelection();
+		}
+		if (follow) {
+			table.setTopIndex(Math.max(0, rowCount() - visibleRowCount()));
+		}
+	}
+	
+	/**
+	 * Is the last row scrolled into view?
+	 * 
+	 * @return True if so, or if there are no rows.
+	 */
+	private boolean isLastRowShowing()
+	{
+		return table.getTopIndex() + visibleRowCount() >= table.getItemCount();
+	}
+	
+	/**
+	 * Return how many rows fit in the table.
+	 * 
+	 * @return The count, at least one.
+	 */
+	private int visibleRowCount()
+	{
+		int height = table.getItemHeight();
+		Rectangle area = table.getClientArea();
+		if (height <= 0) {
+			return 1;
+		}
+		return Math.max(1, (area.height - table.getHeaderHeight()) / height);
+	}
+	
+	/**
+	 * Our data source removed rows.
+	 * 
+	 * @param source	The source
+	 * @param from		Index the first removed row used to have
+	 * @param count		How many rows were removed
+	 */
+	public void rowsRemoved(ITableDataSource source, int from, int count)
+	{
+		if (source != dataSource) {
+			return;
+		}
+		++modCount;
+		lastSortKeys = null;
+		if (pendingFilter != null) {
+			filterShifts.removed(from, count);
+		}
+		if (pendingSort != null) {
+			sortShifts.removed(from, count);
+		}
+		if (filter != null) {
+			filter.remove(from, count);
+		}
+		if (groups != null) {
+			groups.remove(from, count);
+		}
+		if (!selected.isEmpty()) {
+			RowBits.remove(selected, from, count);
+		}
+		if (sourceOrder != null) {
+			sourceOrder = RowShifts.remove(sourceOrder, from, count);
+			from = 0;
+		}
+		if (isLayered()) {
+			showRows();
+			return;
+		}
+		refreshRows(from);
+		table.setItemCount(rowCount());
+		showSelection();
+	}
+	
+	/**
+	 * Our data source has changed completely.
+	 * 
+	 * @param source	The source
+	 */
+	public void dataReset(ITableDataSource source)
+	{
+		if (source != dataSource) {
+			return;
+		}
+		++modCount;
+		lastSortKeys = null;
+		sourceOrder = null;
+		dataSorted = false;
+		filter = null;
+		clearSelection();
+		rowsArrived();
+		if (groups != null) {
+			groups.reset(snapshotRows());
+			showRows();
+		}
+		else {
+			refreshRows(0);
+			table.setItemCount(rowCount());
+		}
+		if (sortColumn != null) {
+			resort();
+		}
+		refilter();
+	}
+	
+	/**
+	 * Our data source has changed while sorted.  Sort again once the
+	 * current burst of notifications is over.  If a sort is already
+	 * running, it sorts again itself when it's done.
+	 */
+	private void scheduleSourceResort()
+	{
+		if (sourceResortPending) {
+			return;
+		}
+		sourceResortPending = true;
+		table.getDisplay().asyncExec(new Runnable() {
+			public void run() {
+				sourceResortPending = false;
+				if (!table.isDisposed() && dataSource != null && sortColumn != null && pendingSort == null) {
+					resort();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Sort again on the current columns, in the background if we're big.
+	 */
+	private void resort()
+	{
+		if (asyncSortThreshold > 0 && baseCount() > asyncSortThreshold) {
+			sortAsync();
+		}
+		else {
+			sort();
+		}
+	}
+	
+	/**
+	 * Start a batch of changes.  Until the matching endUpdate(), the
+	 * table doesn't redraw, and adds, removes and changes are only
+	 * queued.  Calls may nest.
+	 */
+	public void beginUpdate()
+	{
+		if (updateDepth++ == 0) {
+			table.setRedraw(false);
+		}
+	}
+	
+	/**
+	 * Finish a batch of changes.  When the outermost batch ends, we apply
+	 * everything that was queued with a single sort and a single redraw.
+	 */
+	public void endUpdate()
+	{
+		if (updateDepth == 0) {
+			return;
+		}
+		if (--updateDepth == 0) {
+			try {
+				flushUpdates();
+			}
+			finally {
+				table.setRedraw(true);
+			}
+		}
+	}
+	
+	/**
+	 * Run this code as a single batch of changes.
+	 * 
+	 * @param work	Code that adds, removes or changes objects.
+	 */
+	public void batch(Runnable work)
+	{
+		beginUpdate();
+		try {
+			work.run();
+		}
+		finally {
+			endUpdate();
+		}
+	}
+	
+	/**
+	 * Add this object from any thread.  It's added on the display thread
+	 * along with everything else posted since the last frame.
+	 * 
+	 * @param obj	The object to add
+	 */
+	public void postAddObject(Object obj)
+	{
+		post(TableChangeQueue.ADD, obj);
+	}
+	
+	/**
+	 * Remove this object from any thread.
+	 * 
+	 * @param obj	The object to remove
+	 */
+	public void postRemoveObject(Object obj)
+	{
+		post(TableChangeQueue.REMOVE, obj);
+	}
+	
+	/**
+	 * Tell us from any thread that this object has changed.  However
+	 * many times an object is posted between frames, its row is only
+	 * updated once.
+	 * 
+	 * @param obj	The value changed
+	 */
+	public void postObjectChanged(Object obj)
+	{
+		post(TableChangeQueue.CHANGE, obj);
+	}
+	
+	/**
+	 * Queue a change, and if no drain is scheduled yet, schedule one.
+	 * 
+	 * @param kind	What to do
+	 * @param obj	The object
+	 */
+	private void post(int kind, Object obj)
+	{
+		if (changeQueue.post(kind, obj) && !table.isDisposed()) {
+			Display display = table.getDisplay();
+			if (!display.isDisposed()) {
+				display.asyncExec(drainChanges);
+			}
+		}
+	}
+	
+	/**
+	 * Runs on the display thread to apply posted changes.  If we applied
+	 * some less than a frame ago, wait for the rest of the frame.
+	 */
+	private final Runnable drainChanges = new Runnable() {
+		public void run() {
+			if (table.isDisposed()) {
+				return;
+			}
+			long wait = changeQueue.lastDrain + changeInterval - System.currentTimeMillis();
+			if (wait > 0) {
+				table.getDisplay().timerExec((int) wait, this);
+				return;
+			}
+			changeQueue.lastDrain = System.currentTimeMillis();
+			drainChangeQueue();
+		}
+	};
+	
+	/**
+	 * Apply everything posted so far, in order, as one batch.  We only
+	 * take what was there when we started, so a thread that keeps posting
+	 * can't hold up the display thread.
+	 */
+	private void drainChangeQueue()
+	{
+		int count = changeQueue.beginDrain();
+		Set<Object> changed = Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+		beginUpdate();
+		try {
+			for (int index = 0; index < count; ++index) {
+				TableChangeQueue.Change change = changeQueue.poll();
+				if (change == null) {
+					break;
+				}
+				switch (change.kind) {
+				case TableChangeQueue.ADD:
+					addObject(change.obj);
+					break;
+				case TableChangeQueue.REMOVE:
+					removeObject(change.obj);
+					break;
+				default:
+					// Inside a batch a change is only noted, and the row is
+					// read when the batch ends, so once is enough.
+					if (changed.add(change.obj)) {
+						objectChanged(change.obj);
+					}
+					break;
+				}
+			}
+		}
+		catch (Exception ex) {
+			System.err.printf("Exception: %s", ex.getMessage());
+			ex.printStackTrace();
+		}
+		finally {
+			endUpdate();
+		}
+	}
+	
+	/**
+	 * Apply everything queued since beginUpdate().
+	 */
+	private void flushUpdates()
+	{
+		Set<Object> removed = null;
+		if (!pendingRemoves.isEmpty()) {
+			BitSet rows = new BitSet();
+			for (Object obj : pendingRemoves) {
+				int index = rowIndex.indexOf(obj, data);
+				if (index >= 0) {
+					rows.set(index);
+				}
+			}
+			removed = rowIndex.keysOf(pendingRemoves);
+			pendingRemoves.clear();
+			removeRows(rows);
+		}
+		if (rowIndex.isKeyed() && !pendingAdds.isEmpty()) {
+			keyAdds(pendingAdds, pendingChanges);
+		}
+		
+		if (topK > 0) {
+			// A row we don't hold that changed gets offered a place, but not
+			// one removed in this same batch.  If it was added back, that
+			// add offers it.
+			for (Iterator<Object> ptr = pendingChanges.iterator(); removed != null && ptr.hasNext(); ) {
+				if (removed.contains(rowIndex.keyOf(ptr.next()))) {
+					ptr.remove();
+				}
+			}
+			if (!pendingChanges.isEmpty()) {
+				objectsChanged(pendingChanges);
+			}
+			for (Object obj : pendingAdds) {
+				offerTopK(obj);
+			}
+		}
+		else if (!pendingAdds.isEmpty() && sortDeferred()) {
+			// A sort is on its way that will put the new rows in their
+			// places.  Until then they go on the end.
+			if (!pendingChanges.isEmpty()) {
+				objectsChanged(pendingChanges);
+			}
+			for (Object obj : pendingAdds) {
+				addUnsorted(obj);
+			}
+			showAppendedRows();
+		}
+		else if (pendingAdds.size() > incrementalLimit || (!pendingAdds.isEmpty() && !isSorted())) {
+			// Enough new rows that one sort beats inserting them one at a
+			// time.  The sort puts changed rows in their places, too, once
+			// everything else we know about them is up to date.
+			updateChangedRows(pendingChanges);
+			for (Object obj : pendingAdds) {
+				addUnsorted(obj);
+			}
+			table.setItemCount(rowCount());
+			sort();
+		}
+		else {
+			// Changed rows first, so the data is sorted again before we
+			// binary-search it for the new ones.
+			if (!pendingChanges.isEmpty()) {
+				objectsChanged(pendingChanges);
+			}
+			for (Object obj : pendingAdds) {
+				insertSorted(obj);
+			}
+		}
+		pendingAdds.clear();
+		pendingChanges.clear();
+	}
+	
+	/**
+	 * These objects have new values, and we're about to sort everything.
+	 * With a row key, each one first takes over its old version's row.
+	 * Refresh what we keep about each row -- its cached text, search index
+	 * entry, group totals and filter match -- but leave moving it, and
+	 * redrawing, to the sort.
+	 * 
+	 * @param objects The values changed
+	 */
+	private void updateChangedRows(Collection<?> objects)
+	{
+		if (objects.isEmpty()) {
+			return;
+		}
+		lastSortKeys = null;
+		++changeCount;
+		if (pendingFilter != null) {
+			filterDirty.addAll(objects);
+		}
+		for (Object obj : objects) {
+			int index = rowIndex.indexOf(obj, data);
+			if (index >= 0) {
+				replaceRow(index, obj);
+				Object row = data.elementAt(index);
+				rowCache.invalidate(row);
+				indexRow(row);
+				if (groups != null) {
+					groups.update(index, row);
+				}
+				if (filter != null) {
+					filter.matches.set(index, filter.test(row, columnInfo));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * With a row key, adding an object whose key we already have replaces
+	 * that row.  Move those objects from the adds to the changes.  If the
+	 * same key is added more than once, the last one wins.
+	 * 
+	 * @param adds		Objects to add.  Only the really new ones are left.
+	 * @param changes	Where the objects that replace rows go
+	 */
+	private void keyAdds(List<Object> adds, List<Object> changes)
+	{
+		ITableRowKey rowKey = rowIndex.getRowKey();
+		LinkedHashMap<Object,Object> added = new LinkedHashMap<Object,Object>();
+		for (Object obj : adds) {
+			if (rowIndex.indexOf(obj, data) >= 0) {
+				changes.add(obj);
+			}
+			else {
+				added.put(rowKey.rowKey(obj), obj);
+			}
+		}
+		adds.clear();
+		adds.addAll(added.values());
+	}
+	
+	/**
+	 * Remove all these rows in a single pass over the data.
+	 * 
+	 * @param rows	The rows to remove.
+	 */
+	private void removeRows(BitSet rows)
+	{
+		int first = rows.nextSetBit(0);
+		if (first < 0) {
+			return;
+		}
+		
+		int size = data.size();
+		int out = first;
+		for (int in = first; in < size; ++in) {
+			Object obj = data.elementAt(in);
+			if (rows.get(in)) {
+				rowIndex.remove(obj);
+				rowCache.invalidate(obj);
+				unindexRow(obj);
+			}
+			else {
+				data.set(out++, obj);
+			}
+		}
+		data.setSize(out);
+		rowIndex.removed(rows);
+		++modCount;
+		lastSortKeys = null;
+		
+		if (filter != null) {
+			filter.removeRows(rows);
+		}
+		if (groups != null) {
+			groups.removeRows(rows);
+		}
+		if (!selected.isEmpty()) {
+			RowBits.removeRows(selected, rows);
+		}
+		if (isLayered()) {
+			showRows();
+			return;
+		}
+		refreshRows(first);
+		table.setItemCount(out);
+		showSelection();
+	}
+	
+	/**
+	 * SWT is asking us to fill in a row of our virtual table.
+	 * 
+	 * @param event The SWT.SetData event.
+	 */
+	public void handleEvent(Event event) {
+		if (event.type == SWT.SetData) {
+			int index = event.index;
+			if (index >= 0 && index < rowCount()) {
+				TableItem ti = (TableItem)event.item;
+				if (groups != null && groups.isHeader(index)) {
+					ti.setData(null);
+					ti.setText(groups.headerText(index));
+				}
+				else {
+					Object obj = rowAt(index);
+					ti.setData(obj);
+					setTableItemForObject(ti, obj);
+				}
+				materialized.set(index);
+			}
+		}
+	}
+	
+	/**
+	 * Force a single row to be filled in again the next time it's shown.
+	 * 
+	 * @param index	Row index
+	 */
+	private void refreshRow(int index) {
+		if (materialized.get(index)) {
+			table.clear(index);
+			materialized.clear(index);
+		}
+	}
+	
+	/**
+	 * Forget the selection.
+	 */
+	private void clearSelection()
+	{
+		selected.clear();
+		selectedObjects = null;
+		table.deselectAll();
+	}
+	
+	/**
+	 * Rows have moved, appeared or disappeared.  Select whichever table
+	 * rows now show the rows we have selected.
+	 */
+	private void showSelection()
+	{
+		selectedObjects = null;
+		if (selected.isEmpty()) {
+			if (table.getSelectionCount() > 0) {
+				table.deselectAll();
+			}
+			return;
+		}
+		int[] rows = new int[selected.cardinality()];
+		int count = 0;
+		if (dataSource != null && sourceOrder != null) {
+			for (int position = 0; position < sourceOrder.length; ++position) {
+				if (selected.get(sourceOrder[position])) {
+					int row = viewIndex(position);
+					if (row >= 0) {
+						rows[count++] = row;
+					}
+				}
+			}
+		}
+		else {
+			int size = baseCount();
+			for (int position = selected.nextSetBit(0); position >= 0 && position < size; position = selected.nextSetBit(position + 1)) {
+				int row = viewIndex(position);
+				if (row >= 0) {
+					rows[count++] = row;
+				}
+			}
+		}
+		table.deselectAll();
+		table.select(Arrays.copyOf(rows, count));
+	}
+	
+	/**
+	 * Force every row from this one onward to be filled in again the next
+	 * time it's shown.  Only rows SWT has actually asked us for are touched,
+	 * which is normally little more than the visible window.
+	 * 
+	 * @param from	First row to refresh
+	 */
+	private void refreshRows(int from) {
+		refreshRows(from, Math.max(from, materialized.length()));
+	}
+	
+	/**
+	 * Force the rows from..to (inclusive) to be filled in again the next
+	 * time they're shown.
+	 * 
+	 * @param from	First row to refresh
+	 * @param to	Last row to refresh
+	 */
+	private void refreshRows(int from, int to) {
+		int limit = Math.min(table.getItemCount(), to + 1);
+		int start = materialized.nextSetBit(from);
+		while (start >= 0 && start < limit) {
+			int end = Math.min(materialized.nextClearBit(start), limit);
+			table.clear(start, end - 1);
+			start = materialized.nextSetBit(end);
+		}
+		materialized.clear(from, Math.max(from, Math.min(to + 1, materialized.length())));
+	}
+	
+	/**
+	 * A row was removed from the table, so SWT has shifted every item after
+	 * it down by one.  Shift our record of filled-in rows to match.
+	 * 
+	 * @param index	The row removed
+	 */
+	private void removeMaterializedRow(int index) {
+		int length = materialized.length();
+		if (index < length) {
+			BitSet tail = materialized.get(index + 1, Math.max(index + 1, length));
+			materialized.clear(index, length);
+			for (int bit = tail.nextSetBit(0); bit >= 0; bit = tail.nextSetBit(bit + 1)) {
+				materialized.set(index + bit);
+			}
+		}
+	}
+	
+	/**
+	 * Set the fields in this TableItem to properly display this object.
+	 * 
+	 * @param ti	TableItem
+	 * @param obj	The object we're displaying
+	 */
+	private void setTableItemForObject(TableItem ti, Object obj) {
+		// A data source may hand us a new object every time, so we only
+		// cache rows we hold ourselves.
+		TableRowCache.CachedRow row = (dataSource == null) ? rowCache.get(obj, columnInfo, rowCacheSize) : null;
+		ti.setText((row != null) ? row.text : TableRowCache.renderText(obj, columnInfo));
+		if (usingObject != null) {
+			Color background;
+			Color foreground;
+			if (row != null && usingObject.cacheRowColors()) {
+				TableRowCache.updateColors(row, obj, usingObject);
+				background = row.background;
+				foreground = row.foreground;
+			}
+			else {
+				background = usingObject.backgroundColorForRow(obj);
+				foreground = usingObject.foregroundColorForRow(obj);
+			}
+			if (background != null) {
+				ti.setBackground(background);
+			}
+			if (foreground != null) {
+				ti.setForeground(foreground);
+			}
+		}
+	}
+	
+	/**
+	 * If our ITableViewUser caches row colors, make it ask again for this
+	 * object's colors.
+	 * 
+	 * @param obj	The object
+	 */
+	public void invalidateRowColors(Object obj) {
+		int index = rowIndex.indexOf(obj, data);
+		if (index >= 0) {
+			rowCache.invalidateColors(data.elementAt(index));
+			if (viewIndex(index) >= 0) {
+				refreshRow(viewIndex(index));
+			}
+		}
+	}
+	
+	/**
+	 * If our ITableViewUser caches row colors, make it ask again for every
+	 * row's colors.
+	 */
+	public void invalidateAllRowColors() {
+		rowCache.invalidateAllColors();
+		refreshRows(0);
+	}
+	
+	/**
+	 * Throw away all the cell text we've cached and redisplay.  Use this if
+	 * a column's formatter depends on something we can't see change.
+	 */
+	public void invalidateCellCache() {
+		rowCache.clear();
+		refreshRows(0);
+	}
+	
+	/**
+	 * We need to be able to make some callbacks to whoever is using
+	 * us.  Currently, this is only for setting foreground and background
+	 * colors based on the objects we're displaying, but we could end up
+	 * with action methods and other cool stuff.
+	 * 
+	 * @param user This is probably our container.
+	 */
+	public void setUser(ITableViewUser user) {
+		usingObject = user;
+		rowCache.invalidateAllColors();
+	}
+	
+	/**
+	 * By default we find rows by object identity.  Call this with true if
+	 * you'll be passing us equal-but-different instances instead.
+	 * 
+	 * @param byEquals	True to look rows up with equals() / hashCode().
+	 */
+	public void setIndexByEquals(boolean byEquals) {
+		if (byEquals != rowIndex.isByEquals()) {
+			rowIndex.setByEquals(byEquals, data);
+		}
+	}
+	
+	/**
+	 * Give every row a key.  From then on, an object whose key matches a
+	 * row we have is taken as the new version of that row: addObject()
+	 * and objectChanged() put it in that row's place, and only that row
+	 * is redrawn, or moved if it no longer sorts there.  removeObject()
+	 * and indexOf() find rows by key, too.  Pass null to go back to
+	 * finding rows by identity, or equals() if setIndexByEquals() is on.
+	 * 
+	 * @param rowKey	Gets the key from a row, or null
+	 */
+	public void setRowKey(ITableRowKey rowKey) {
+		rowIndex.setRowKey(rowKey, data);
+	}
+	
+	/**
+	 * Return what we get row keys with.
+	 * 
+	 * @return The row key, or null if we aren't using one.
+	 */
+	public ITableRowKey getRowKey() {
+		return rowIndex.getRowKey();
+	}
+	
+	/**
+	 * With a row key, a new object can stand in for the one in its row.
+	 * Put it there, in place of the old one.  The caller redraws the row.
+	 * 
+	 * @param index		The row
+	 * @param obj		The object to keep there
+	 */
+	private void replaceRow(int index, Object obj) {
+		Object old = data.elementAt(index);
+		if (old == obj || !rowIndex.isKeyed()) {
+			return;
+		}
+		// A sort in progress has the old object in its snapshot.  It puts
+		// the new one in its place when it's done.
+		if (pendingSort != null) {
+			sortReplaced.put(old, obj);
+		}
+		rowCache.invalidate(old);
+		unindexRow(old);
+		data.set(index, obj);
+		rowIndex.put(obj, index);
+		selectedObjects = null;
+	}
+	
+	/**
+	 * Return the row currently displaying this object.
+	 * 
+	 * @param obj The object
+	 * @return The row index, or -1 if we don't have it or the filter hides it.
+	 */
+	public int indexOf(Object obj) {
+		return viewIndex(rowIndex.indexOf(obj, data));
+	}
+	
+	/**
+	 * Something has happened to this object.
+	 * 
+	 * @param obj The value changed
+	 */
+	public void objectChanged(Object obj) {
+		lastSortKeys = null;
+		++changeCount;
+		if (dataSource != null) {
+			refreshRows(0);
+			return;
+		}
+		if (updateDepth > 0) {
+			pendingChanges.add(obj);
+			return;
+		}
+		if (pendingSort != null) {
+			sortDirty.add(obj);
+		}
+		if (pendingFilter != null) {
+			filterDirty.add(obj);
+		}
+		int index = rowIndex.indexOf(obj, data);
+		if (index >= 0) {
+			replaceRow(index, obj);
+			rowCache.invalidate(data.elementAt(index));
+			indexRow(data.elementAt(index));
+			boolean regrouped = (groups != null) && groups.update(index, data.elementAt(index));
+			if (isSorted() && !inSortedPosition(index)) {
+				moveSorted(index);
+			}
+			else if (isLayered()) {
+				showChangedRow(index, regrouped);
+			}
+			else {
+				refreshRow(index);
+			}
+		}
+		else if (topK > 0) {
+			offerTopK(obj);
+		}
+	}
+	
+	/**
+	 * Something has happened to all these objects.  We look up every row
+	 * first and then refresh them in row order.
+	 * 
+	 * @param objects The values changed
+	 */
+	public void objectsChanged(Collection<?> objects) {
+		lastSortKeys = null;
+		++changeCount;
+		if (dataSource != null) {
+			refreshRows(0);
+			return;
+		}
+		if (updateDepth > 0) {
+			pendingChanges.addAll(objects);
+			return;
+		}
+		if (pendingSort != null) {
+			sortDirty.addAll(objects);
+		}
+		if (pendingFilter != null) {
+			filterDirty.addAll(objects);
+		}
+		int[] rows = new int[objects.size()];
+		int count = 0;
+		ArrayList<Object> outside = new ArrayList<Object>();
+		for (Object obj : objects) {
+			int index = rowIndex.indexOf(obj, data);
+			if (index >= 0) {
+				replaceRow(index, obj);
+				rowCache.invalidate(data.elementAt(index));
+				indexRow(data.elementAt(index));
+				if (groups != null) {
+					groups.update(index, data.elementAt(index));
+				}
+				rows[count++] = index;
+			}
+			else if (topK > 0) {
+				outside.add(obj);
+			}
+		}
+		Arrays.sort(rows, 0, count);
+		
+		// The rows that didn't change are still in order among themselves.
+		// So if every changed row is in order with its neighbors, the whole
+		// table still is.
+		boolean anyMoved = false;
+		if (isSorted()) {
+			for (int index = 0; index < count && !anyMoved; ++index) {
+				anyMoved = !inSortedPosition(rows[index]);
+			}
+		}
+		
+		if (!anyMoved && isLayered()) {
+			retestRows(rows, count);
+			showRows();
+		}
+		else if (!anyMoved) {
+			for (int index = 0; index < count; ++index) {
+				refreshRow(rows[index]);
+			}
+		}
+		else if (count == 1) {
+			moveSorted(rows[0]);
+		}
+		else if (count > incrementalLimit) {
+			// The sort carries the filter's bits along, so they have to be
+			// right before it starts.
+			retestRows(rows, count);
+			sort();
+		}
+		else {
+			// Pull out every changed row, leaving sorted data behind, and
+			// then put each one back where it belongs.
+			BitSet changed = new BitSet();
+			Object[] changedObjects = new Object[count];
+			int unique = 0;
+			for (int index = 0; index < count; ++index) {
+				if (!changed.get(rows[index])) {
+					changed.set(rows[index]);
+					changedObjects[unique++] = data.elementAt(rows[index]);
+				}
+			}
+			removeRows(changed);
+			for (int index = 0; index < unique; ++index) {
+				insertSorted(changedObjects[index]);
+			}
+		}
+		
+		// Rows we'd evicted, or never kept, may make the cut now.
+		for (Object obj : outside) {
+			offerTopK(obj);
+		}
+	}
+
+	/**
+	 * These rows have new values.  Test them against the filter again.
+	 * 
+	 * @param rows		Their positions
+	 * @param count		How many of rows to use
+	 */
+	private void retestRows(int[] rows, int count)
+	{
+		for (int index = 0; filter != null && index < count; ++index) {
+			filter.matches.set(rows[index], filter.test(data.elementAt(rows[index]), columnInfo));
+		}
+	}
+
+	/**
+	 * Show only the rows whose text contains this, ignoring case.  A row
+	 * matches if any column's value, as displayed, contains the text.  Pass
+	 * null or an empty string to show every row again.
+	 *
+	 * If the new text contains the old, we only test rows that matched the
+	 * old.  On tables bigger than asyncFilterThreshold, the testing is done
+	 * on the fork/join pool and the table keeps showing the old rows until
+	 * it's done, so your getters and formatters get called from there too.
+	 * Rows that come, go or change meanwhile don't hold it up: when the
+	 * result comes back we show it and test just those rows again.
+	 * 
+	 * @param text	What to look for
+	 */
+	public void setFilterText(String text)
+	{
+		filterText = (text == null) ? "" : text;
+		refilter();
+	}
+	
+	/**
+	 * Return the text we're filtering on.
+	 * 
+	 * @return The text, or an empty string if we aren't filtering.
+	 */
+	public String getFilterText()
+	{
+		return filterText;
+	}
+	
+	/**
+	 * Bring the filter up to date with filterText.
+	 */
+	private void refilter()
+	{
+		cancelPendingFilter();
+		if (filterText.isEmpty()) {
+			if (filter != null) {
+				filter = null;
+				showRows();
+			}
+			return;
+		}
+		
+		// Rows that didn't match a shorter query can't match a longer one,
+		// and rows that matched a longer one still match a shorter one.
+		BitSet only = null;
+		BitSet known = null;
+		if (filter != null && TableFilter.containsIgnoreCase(filterText, filter.query)) {
+			only = (BitSet) filter.matches.clone();
+		}
+		else if (filter != null && TableFilter.containsIgnoreCase(filter.query, filterText)) {
+			known = (BitSet) filter.matches.clone();
+		}
+		
+		// The index tells us which rows could possibly match.  If there are
+		// only a few, find their positions now.  Otherwise we find them in
+		// the background.
+		List<Object> candidates = (searchIndex != null && dataSource == null) ? searchIndex.candidates(filterText) : null;
+		if (candidates != null && (asyncFilterThreshold <= 0 || candidates.size() <= asyncFilterThreshold)) {
+			BitSet indexed = new BitSet();
+			for (Object obj : candidates) {
+				int index = rowIndex.indexOf(obj, data);
+				if (index >= 0) {
+					indexed.set(index);
+				}
+			}
+			if (only != null) {
+				only.and(indexed);
+			}
+			else {
+				only = indexed;
+			}
+			candidates = null;
+		}
+		
+		final String query = filterText;
+		final Object[] rows = snapshotRows();
+		final List<TableViewColumn> columns = new ArrayList<TableViewColumn>(columnInfo);
+		final AtomicBoolean cancelled = new AtomicBoolean(false);
+		int testCount = (only != null) ? only.cardinality() : rows.length;
+		if (asyncFilterThreshold <= 0 || (candidates == null && testCount <= asyncFilterThreshold)) {
+			showFilter(new TableFilter(query, TableFilter.match(rows, columns, query, only, known, cancelled, false)));
+			return;
+		}
+		
+		final List<Object> indexed = candidates;
+		final BitSet onlyRows = only;
+		final BitSet knownRows = known;
+		final int startModCount = modCount;
+		final int startChangeCount = changeCount;
+		final Display display = table.getDisplay();
+		pendingFilter = cancelled;
+		
+		ForkJoinPool.commonPool().execute(new Runnable() {
+			public void run() {
+				BitSet testRows = onlyRows;
+				if (indexed != null) {
+					testRows = TableFilter.positionsOf(rows, indexed);
+					if (onlyRows != null) {
+						testRows.and(onlyRows);
+					}
+				}
+				final BitSet matches = TableFilter.match(rows, columns, query, testRows, knownRows, cancelled, true);
+				if (matches == null || display.isDisposed()) {
+					return;
+				}
+				display.asyncExec(new Runnable() {
+					public void run() {
+						if (table.isDisposed() || pendingFilter != cancelled) {
+							return;
+						}
+						pendingFilter = null;
+						if (modCount != startModCount || changeCount != startChangeCount) {
+							showFilter(new TableFilter(query, catchUpFilter(rows, matches, query)));
+						}
+						else {
+							showFilter(new TableFilter(query, matches));
+						}
+						filterDirty.clear();
+						filterShifts.clear();
+					}
+				});
+			}
+		});
+	}
+	
+	/**
+	 * A background filter has finished, but rows have come, gone, moved or
+	 * changed since it started.  Carry its result over to where the rows
+	 * are now, and test again only the rows that are new or have new
+	 * values, the same ones we'd have tested had the filter been in place.
+	 * 
+	 * @param rows		The rows the filter tested, from snapshotRows()
+	 * @param matches	The rows that matched, indexed like rows
+	 * @param query		What we filtered on
+	 * @return The rows that match now, indexed the way the rows are now.
+	 */
+	private BitSet catchUpFilter(Object[] rows, BitSet matches, String query)
+	{
+		BitSet current;
+		BitSet stale;
+		if (dataSource != null) {
+			current = matches;
+			stale = filterShifts.apply(current);
+		}
+		else {
+			// Our own rows may have been sorted since, so find each one.
+			current = new BitSet(data.size());
+			for (int bit = matches.nextSetBit(0); bit >= 0; bit = matches.nextSetBit(bit + 1)) {
+				int index = rowIndex.indexOf(rows[bit], data);
+				if (index >= 0) {
+					current.set(index);
+				}
+			}
+			stale = new BitSet();
+			for (Object obj : filterDirty) {
+				int index = rowIndex.indexOf(obj, data);
+				if (index >= 0) {
+					stale.set(index);
+				}
+			}
+		}
+		int size = baseCount();
+		current.clear(size, Math.max(size, current.length()));
+		for (int index = stale.nextSetBit(0); index >= 0 && index < size; index = stale.nextSetBit(index + 1)) {
+			Object obj = (dataSource != null) ? dataSource.get(index) : data.elementAt(index);
+			current.set(index, TableFilter.matches(obj, columnInfo, query));
+		}
+		return current;
+	}
+	
+	/**
+	 * Keep a trigram index of every column's text, so filtering on three
+	 * or more characters only tests the rows that might match.  The index
+	 * is built in the background and then kept up to date as you add,
+	 * remove and change objects.  It costs memory, so it's off by default.
+	 * It only covers rows we hold ourselves, not an ITableDataSource.
+	 * 
+	 * @param enabled	True to keep an index.
+	 */
+	public void setSearchIndexEnabled(boolean enabled)
+	{
+		searchIndexEnabled = enabled;
+		searchIndex = null;
+		if (enabled) {
+			buildSearchIndex();
+		}
+		else {
+			cancelPendingIndex();
+		}
+	}
+	
+	/**
+	 * Are we keeping a search index?
+	 * 
+	 * @return True if so.
+	 */
+	public boolean isSearchIndexEnabled()
+	{
+		return searchIndexEnabled;
+	}
+	
+	/**
+	 * Build a fresh search index in the background.  Until it's done, we
+	 * keep using the old one, if any, and note which rows change so we
+	 * can catch the new one up.  The rows' text is pulled out here, so
+	 * getters and formatters are only ever called on the display thread.
+	 */
+	private void buildSearchIndex()
+	{
+		cancelPendingIndex();
+		if (dataSource != null) {
+			return;
+		}
+		final Object[] rows = data.toArray();
+		final TableSearchIndex index = new TableSearchIndex(new ArrayList<TableViewColumn>(columnInfo));
+		final String[] text = index.textOf(rows);
+		final AtomicBoolean cancelled = new AtomicBoolean(false);
+		final Display display = table.getDisplay();
+		pendingIndex = cancelled;
+		
+		ForkJoinPool.commonPool().execute(new Runnable() {
+			public void run() {
+				index.addAll(rows, text, cancelled);
+				if (cancelled.get() || display.isDisposed()) {
+					return;
+				}
+				display.asyncExec(new Runnable() {
+					public void run() {
+						if (table.isDisposed() || pendingIndex != cancelled) {
+							return;
+						}
+						pendingIndex = null;
+						for (Object obj : indexDirty) {
+							index.remove(obj);
+							if (rowIndex.indexOf(obj, data) >= 0) {
+								index.add(obj);
+							}
+						}
+						indexDirty.clear();
+						searchIndex = index;
+					}
+				});
+			}
+		});
+	}
+	
+	/**
+	 * Stop building a search index.
+	 */
+	private void cancelPendingIndex()
+	{
+		if (pendingIndex != null) {
+			pendingIndex.set(true);
+			pendingIndex = null;
+		}
+		indexDirty.clear();
+	}
+	
+	/**
+	 * This row is new or has changed.  Bring the search index up to date.
+	 * 
+	 * @param obj	The row
+	 */
+	private void indexRow(Object obj)
+	{
+		if (pendingIndex != null) {
+			indexDirty.add(obj);
+		}
+		if (searchIndex != null) {
+			searchIndex.add(obj);
+			if (pendingIndex == null && searchIndex.needsRebuild()) {
+				buildSearchIndex();
+			}
+		}
+	}
+	
+	/**
+	 * This row is gone.  Drop it from the search index.
+	 * 
+	 * @param obj	The row
+	 */
+	private void unindexRow(Object obj)
+	{
+		if (pendingIndex != null) {
+			indexDirty.add(obj);
+		}
+		if (searchIndex != null) {
+			searchIndex.remove(obj);
+		}
+	}
+	
+	/**
+	 * Stop any background filtering that's still running.
+	 */
+	private void cancelPendingFilter()
+	{
+		if (pendingFilter != null)
+		{
+			pendingFilter.set(true);
+			pendingFilter = null;
+		}
+		filterDirty.clear();
+		filterShifts.clear();
+	}
+	
+	/**
+	 * Start showing the rows this filter matched.
+	 * 
+	 * @param newFilter	The filter
+	 */
+	private void showFilter(TableFilter newFilter)
+	{
+		filter = newFilter;
+		showRows();
+	}
+	
+	/**
+	 * The filter's bits or the groups have changed.  Work out what each
+	 * table row shows and redisplay.
+	 */
+	private void showRows()
+	{
+		int[] order = (dataSource != null) ? sourceOrder : null;
+		if (filter != null) {
+			filter.buildViewRows(order, baseCount());
+		}
+		if (groups != null) {
+			if (filter != null) {
+				groups.buildDisplay(filter.viewRows, filter.viewCount, baseCount(), order);
+			}
+			else {
+				groups.buildDisplay(null, 0, baseCount(), order);
+			}
+		}
+		table.setItemCount(rowCount());
+		refreshRows(0);
+		showSelection();
+	}
+	
+	/**
+	 * The filter and groups have fitted rows into the display in place.
+	 * Redisplay from the first table row that changed, or lay everything
+	 * out again if they couldn't keep up.
+	 * 
+	 * @param first	The first table row that changed, or -1
+	 */
+	private void showRowsFrom(int first)
+	{
+		if (first < 0) {
+			showRows();
+			return;
+		}
+		table.setItemCount(rowCount());
+		refreshRows(first);
+		showSelection();
+	}
+	
+	/**
+	 * A row has just been inserted into our own data, and the filter's bit
+	 * and the groups know about it.  Fit it into the display.
+	 * 
+	 * @param pos	Where it went
+	 * @return The first table row that changed, or -1 to lay everything out again.
+	 */
+	private int layInsertedRow(int pos)
+	{
+		int first = pos;
+		if (filter != null) {
+			first = filter.insertViewRow(pos, data.size());
+		}
+		if (groups != null && first >= 0) {
+			first = groups.insertDisplayRow(pos, filter == null || filter.matches.get(pos));
+		}
+		return first;
+	}
+	
+	/**
+	 * A row is about to be taken out of our own data.  Take it out of the
+	 * display first, while the groups still know which one it was.
+	 * 
+	 * @param index	Where it is
+	 * @return The first table row that changed, or -1 to lay everything out again.
+	 */
+	private int layRemovedRow(int index)
+	{
+		int first = index;
+		if (filter != null) {
+			first = filter.removeViewRow(index, data.size());
+		}
+		if (groups != null && first >= 0) {
+			first = groups.removeDisplayRow(index);
+		}
+		return first;
+	}
+	
+	/**
+	 * A row in our own data changed groups or started or stopped matching
+	 * the filter.  Move it in the display.
+	 * 
+	 * @param index	Where it is
+	 * @return The first table row that changed, or -1 to lay everything out again.
+	 */
+	private int layChangedRow(int index)
+	{
+		int first = index;
+		if (filter != null) {
+			first = filter.changeViewRow(index, data.size());
+		}
+		if (groups != null && first >= 0) {
+			first = groups.changeDisplayRow(index, filter == null || filter.matches.get(index));
+		}
+		return first;
+	}
+	
+	/**
+	 * This row has new values but hasn't moved.  It may have started or
+	 * stopped matching the filter, or moved to another group.  If not, we
+	 * just redisplay it and its group's header.
+	 * 
+	 * @param index		Row position before filtering
+	 * @param regrouped	True if it's in a different group now
+	 */
+	private void showChangedRow(int index, boolean regrouped)
+	{
+		boolean reshow = regrouped;
+		if (filter != null) {
+			boolean matches = filter.test(data.elementAt(index), columnInfo);
+			if (matches != filter.matches.get(index)) {
+				filter.matches.set(index, matches);
+				reshow = true;
+			}
+		}
+		if (reshow) {
+			showRowsFrom(layChangedRow(index));
+			return;
+		}
+		int row = viewIndex(index);
+		if (row >= 0) {
+			refreshRow(row);
+		}
+		if (groups != null) {
+			int header = groups.headerRowFor(index);
+			if (header >= 0) {
+				refreshRow(header);
+			}
+		}
+	}
+	
+	/**
+	 * Group the rows on this column.  Each group gets a header row showing
+	 * the group's value, how many rows it has, and for every column with
+	 * an aggregate set, that aggregate over the group's rows.  Groups are
+	 * in the order of this column's sortAscending; within a group, rows
+	 * keep the table's sort order.  Double-click a header to open or close
+	 * the group.  Pass null to stop grouping.
+	 *
+	 * Set each column's aggregate before calling this.  Totals are kept up
+	 * to date as rows are added, removed and changed, without going back
+	 * over the rows.  Aggregates cover every row in the group, including
+	 * rows the filter hides.
+	 * 
+	 * @param col	Column to group on, or null.
+	 */
+	public void setGroupColumn(TableViewColumn col)
+	{
+		if (col == null) {
+			groups = null;
+			if (filter != null) {
+				showRows();
+			}
+			else {
+				table.setItemCount(rowCount());
+				refreshRows(0);
+			}
+			return;
+		}
+		groups = new TableGroups(col, new ArrayList<TableViewColumn>(columnInfo));
+		groups.reset(snapshotRows());
+		showRows();
+	}
+	
+	/**
+	 * Return the column we're grouping on.
+	 * 
+	 * @return The column, or null if we aren't grouped.
+	 */
+	public TableViewColumn getGroupColumn()
+	{
+		return (groups != null) ? groups.groupColumn : null;
+	}
+	
+	/**
+	 * Open or close a group.
+	 * 
+	 * @param key		The group column's value for the group
+	 * @param expanded	True to show the group's rows.
+	 */
+	public void setGroupExpanded(Object key, boolean expanded)
+	{
+		if (groups != null) {
+			groups.setExpanded(key, expanded);
+			showRows();
+		}
+	}
+	
+	/**
+	 * Open or close every group.
+	 * 
+	 * @param expanded	True to show every group's rows.
+	 */
+	public void setAllGroupsExpanded(boolean expanded)
+	{
+		if (groups != null) {
+			groups.setAllExpanded(expanded);
+			showRows();
+		}
+	}
+	
+	/**
+	 * Is this group open?
+	 * 
+	 * @param key	The group column's value for the group
+	 * @return True if its rows are shown.
+	 */
+	public boolean isGroupExpanded(Object key)
+	{
+		return (groups != null) && groups.isExpanded(key);
+	}
+	
+	/**
+	 * Return the number of rows in a group.
+	 * 
+	 * @param key	The group column's value for the group
+	 * @return The count, or zero if there's no such group.
+	 */
+	public int getGroupSize(Object key)
+	{
+		return (groups != null) ? groups.size(key) : 0;
+	}
+	
+	/**
+	 * Return an aggregate over one column of a group.  The column must
+	 * have had an aggregate set when grouping started.
+	 * 
+	 * @param key		The group column's value for the group
+	 * @param col		The column
+	 * @param aggregate	One of TableViewColumn.AGG_SUM, AGG_COUNT, AGG_MIN or AGG_MAX
+	 * @return The value, or NaN if there's no such group or it has no numbers.
+	 */
+	public double getGroupAggregate(Object key, TableViewColumn col, int aggregate)
+	{
+		return (groups != null) ? groups.aggregate(key, col, aggregate) : Double.NaN;
+	}
+	
+	/**
+	 * Write the rows we're showing, in the order we're showing them, to
+	 * this Writer as CSV or TSV.  Rows the filter hides and group headers
+	 * are left out.  The writing happens on another thread; we return as
+	 * soon as it has started.
+	 * 
+	 * @param out		Where to write.  We flush it but don't close it.
+	 * @param format	TableExport.FORMAT_CSV or FORMAT_TSV
+	 * @param listener	Told about progress and when it's over, or null.
+	 * @return The export, which you can cancel.
+	 */
+	public TableExport exportRows(Writer out, int format, ITableExportListener listener)
+	{
+		return startExport(new TableExport(exportSnapshot(), columnInfo, format, out, null, null,
+				listener, table.getDisplay()));
+	}
+	
+	/**
+	 * Write the rows we're showing to this channel as CSV or TSV.
+	 * 
+	 * @param out		Where to write.  We don't close it.
+	 * @param charset	How to encode the text
+	 * @param format	TableExport.FORMAT_CSV or FORMAT_TSV
+	 * @param listener	Told about progress and when it's over, or null.
+	 * @return The export, which you can cancel.
+	 */
+	public TableExport exportRows(WritableByteChannel out, Charset charset, int format, ITableExportListener listener)
+	{
+		return startExport(new TableExport(exportSnapshot(), columnInfo, format, null, out, charset,
+				listener, table.getDisplay()));
+	}
+	
+	/**
+	 * Return the rows an export writes: every row shown, in order, other
+	 * than group headers.
+	 * 
+	 * @return The rows.
+	 */
+	private Object[] exportSnapshot()
+	{
+		int count = rowCount();
+		Object[] rows = new Object[count];
+		int out = 0;
+		for (int index = 0; index < count; ++index) {
+			Object obj = rowAt(index);
+			if (obj != null) {
+				rows[out++] = obj;
+			}
+		}
+		return (out == count) ? rows : Arrays.copyOf(rows, out);
+	}
+	
+	/**
+	 * Run an export on its own thread.  It spends its time waiting on
+	 * I/O, so it doesn't belong on the fork/join pool.
+	 * 
+	 * @param export	The export
+	 * @return The same export.
+	 */
+	private TableExport startExport(TableExport export)
+	{
+		Thread thread = new Thread(export, "TableView export");
+		thread.setDaemon(true);
+		thread.start();
+		return export;
+	}
+	
+	/**
+	 * Double-clicked a column.
+	 * 
+	 * @param event We get the widget from this.
+	 */
+	public void widgetDefaultSelected(SelectionEvent event) {
+		Widget widget = event.widget;
+		if (widget instanceof Table) {
+			int[] selection = table.getSelectionIndices();
+			if (selection == null)
+			{
+			}
+			else
+			{
+				// Double-clicking a group header opens or closes it.
+				boolean toggled = false;
+				for (int index = 0; groups != null && index < selection.length; ++index)
+				{
+					if (groups.isHeader(selection[index]))
+					{
+						Object key = groups.keyAt(selection[index]);
+						groups.setExpanded(key, !groups.isExpanded(key));
+						toggled = true;
+					}
+				}
+				if (selectionCallbackMethod != null)
+				{
+					invokeSelectionCallback(selectionCallbackObject, selectionCallbackMethod);
+				}
+				if (toggled)
+				{
+					showRows();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Something was selected, probably a header column.
+	 * 
+	 * @param event We get the widget from this.
+	 */
+	public void widgetSelected(SelectionEvent event) {
+		Widget widget = event.widget;
+		if (widget instanceof TableColumn) {
+			TableColumn tCol = (TableColumn)widget;
+			int colNum = table.indexOf(tCol);
+			TableViewColumn tvc = columnInfo.elementAt(colNum);
+			chooseSortColumn(tvc, (event.stateMask & SWT.SHIFT) != 0);
+			resort();
+		}
+		else if (widget instanceof Table) {
+			// Ctrl-click (Cmd-click on the Mac) adds to the selection, so
+			// rows the filter is hiding stay selected.
+			readSelection((event.stateMask & SWT.MOD1) != 0);
+			if (singleSelectionCallbackMethod != null)
+			{
+				invokeSelectionCallback(singleSelectionCallbackObject, singleSelectionCallbackMethod);
+			}
+		}
+	}
+	
+	/**
+	 * Call a selection callback.  If it takes a List or Collection, it's
+	 * called once with every selected object.  Otherwise it's called once
+	 * per selected object.
+	 * 
+	 * @param callbackObject	Object to call back to
+	 * @param callbackMethod	Method to call
+	 */
+	private void invokeSelectionCallback(Object callbackObject, Method callbackMethod)
+	{
+		List<Object> objs = getSelectedObjectsView();
+		Class<?> argClass = callbackMethod.getParameterTypes()[0];
+		if (argClass == List.class || argClass == Collection.class)
+		{
+			try
+			{
+				callbackMethod.invoke(callbackObject, objs);
+			}
+			catch (Exception ex)
+			{
+				System.err.printf("Exception: %s", ex.getMessage());
+				ex.printStackTrace();
+			}
+			return;
+		}
+		for (Object selectedObject : objs)
+		{
+			try
+			{
+				callbackMethod.invoke(callbackObject, selectedObject);
+			}
+			catch (Exception ex)
+			{
+				System.err.printf("Exception: %s", ex.getMessage());
+				ex.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * The table's selection has changed.  Remember which rows are selected.
+	 * 
+	 * @param keepHidden	True to leave rows we aren't showing selected
+	 */
+	private void readSelection(boolean keepHidden)
+	{
+		int[] selection = table.getSelectionIndices();
+		int count = rowCount();
+		selectedObjects = null;
+		if (!isLayered() || !keepHidden) {
+			selected.clear();
+		}
+		else {
+			for (int row = 0; row < count; ++row) {
+				int position = basePosition(row);
+				if (position >= 0) {
+					selected.clear(snapshotIndex(position));
+				}
+			}
+		}
+		if (selection == null) {
+			return;
+		}
+		if (!isLayered() && sourceOrder == null && selection.length == count) {
+			selected.set(0, count);
+			return;
+		}
+		for (int index = 0; index < selection.length; ++index) {
+			if (selection[index] < count) {
+				int position = basePosition(selection[index]);
+				if (position >= 0) {
+					selected.set(snapshotIndex(position));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Return the selected objects.
+	 * 
+	 * @return List of selected objects.  It's a copy, so it's yours to change.
+	 * @see #getSelectedObjectsView()
+	 */
+	public ArrayList<Object> getSelectedObjects() {
+		return new ArrayList<Object>(getSelectedObjectsView());
+	}
+	
+	/**
+	 * Return the selected objects, in the order they're shown.  Rows the
+	 * filter is hiding, or in closed groups, aren't included, although
+	 * they stay selected.
+	 * 
+	 * Unlike getSelectedObjects(), this doesn't copy anything.  The list is
+	 * kept until the selection or the rows change, so calling this
+	 * repeatedly is cheap.  It can't be changed.
+	 * 
+	 * @return Read-only list of selected objects.
+	 */
+	public List<Object> getSelectedObjectsView() {
+		if (selectedObjects == null) {
+			ArrayList<Object> objs = new ArrayList<Object>();
+			int[] selection = table.getSelectionIndices();
+			if (selection != null) {
+				objs.ensureCapacity(selection.length);
+				for (int index = 0; index < selection.length; ++index)
+				{
+					Object selectedObject = rowAt(selection[index]);
+					if (selectedObject != null) {
+						objs.add(selectedObject);
+					}
+				}
+			}
+			selectedObjects = Collections.unmodifiableList(objs);
+		}
+		return selectedObjects;
+	}
+	
+	/**
+	 * Return the number of selected rows, including any we aren't showing.
+	 * 
+	 * @return The count.
+	 */
+	public int getSelectionCount() {
+		return selected.cardinality();
+	}
+	
+	/**
+	 * Select exactly these objects.  Objects not in the table are ignored.
+	 * Rows the filter is hiding are selected too, and show up selected
+	 * once the filter lets them through.  Callbacks aren't called.
+	 * 
+	 * @param objs	The objects to select
+	 */
+	public void setSelectedObjects(Collection<?> objs) {
+		selected.clear();
+		if (dataSource == null) {
+			for (Object obj : objs) {
+				int index = rowIndex.indexOf(obj, data);
+				if (index >= 0) {
+					selected.set(index);
+				}
+			}
+		}
+		else {
+			selected.or(TableFilter.positionsOf(snapshotRows(), new ArrayList<Object>(objs)));
+		}
+		showSelection();
+	}
+	
+	/**
+	 * Select every row we're showing.  Callbacks aren't called.
+	 */
+	public void selectAll() {
+		table.selectAll();
+		readSelection(false);
+	}
+	
+	/**
+	 * Select nothing, including rows we aren't showing.  Callbacks aren't
+	 * called.
+	 */
+	public void deselectAll() {
+		clearSelection();
+	}
+	
+	/**
+	 * Sort on these columns, primary first.  Each column sorts in its own
+	 * sortAscending direction.
+	 * 
+	 * @param columns	Columns to sort on
+	 */
+	public void setSortColumns(List<TableViewColumn> columns)
+	{
+		cancelPendingSort();
+		sortColumns.clear();
+		sortColumns.addAll(columns);
+		sortColumn = sortColumns.isEmpty() ? null : sortColumns.get(0);
+		dataSorted = false;
+		if (sortColumn != null) {
+			resort();
+		}
+	}
+	
+	/**
+	 * Return the columns we sort on, primary first.
+	 * 
+	 * @return A copy of the list.
+	 */
+	public ArrayList<TableViewColumn> getSortColumns()
+	{
+		return new ArrayList<TableViewColumn>(sortColumns);
+	}
+	
+	/**
+	 * Sort the data on the current columns.  If the only change since we
+	 * last sorted is a new tie-breaker on the end, we keep the order we
+	 * already have and just sort within each run of tied rows.
+	 */
+	private void sort()
+	{
+		cancelPendingSort();
+		if (sortColumns.isEmpty()) {
+			chooseSortColumn(null, false);
+		}
+		dataSorted = false;
+		
+		// Decorate-sort-undecorate: fetch each row's keys once, sort the
+		// row indices by key, then put the rows in that order.
+		Object[] dataArray = snapshotRows();
+		SortKeys keys;
+		int[] order;
+		if (canRefineLastSort(dataArray.length)) {
+			SortKeys trailing = SortKeys.extract(sortColumns.get(sortColumns.size() - 1), dataArray);
+			order = RowSorter.refineOrder(currentOrder(), lastSortKeys, trailing);
+			keys = new SortKeys.CompositeKeys(new SortKeys[] { lastSortKeys, trailing });
+		}
+		else {
+			keys = SortKeys.extract(sortColumns, dataArray);
+			order = keys.sortedOrder();
+		}
+		applySortOrder(dataArray, order, keys);
+	}
+	
+	/**
+	 * Sort the data on the current columns without tying up the display
+	 * thread.  We grab the keys here, sort them on the fork/join pool, and
+	 * then apply the result back on the display thread.  Starting another
+	 * sort cancels this one.  Rows added while we're sorting go on the end
+	 * for now.  When the result comes back we apply it anyway: rows removed
+	 * meanwhile are dropped from it, and rows added or changed are merged
+	 * in where they belong.  With a data source, they're put on the end and
+	 * we sort again.
+	 */
+	private void sortAsync()
+	{
+		cancelPendingSort();
+		if (sortColumns.isEmpty()) {
+			chooseSortColumn(null, false);
+		}
+		dataSorted = false;
+		
+		final Object[] dataArray = snapshotRows();
+		final SortKeys keys;
+		final SortKeys prefix;
+		final SortKeys trailing;
+		final int[] current;
+		if (canRefineLastSort(dataArray.length)) {
+			prefix = lastSortKeys;
+			trailing = SortKeys.extract(sortColumns.get(sortColumns.size() - 1), dataArray);
+			current = currentOrder();
+			keys = new SortKeys.CompositeKeys(new SortKeys[] { prefix, trailing });
+		}
+		else {
+			prefix = null;
+			trailing = null;
+			current = null;
+			keys = SortKeys.extract(sortColumns, dataArray);
+		}
+		final AtomicBoolean cancelled = new AtomicBoolean(false);
+		final int startModCount = modCount;
+		final int startChangeCount = changeCount;
+		final Display display = table.getDisplay();
+		pendingSort = cancelled;
+		
+		ForkJoinPool.commonPool().execute(new Runnable() {
+			public void run() {
+				final int[] order = (prefix != null)
+						? RowSorter.refineOrder(current, prefix, trailing)
+						: keys.parallelSortedOrder(cancelled);
+				if (order == null || cancelled.get() || display.isDisposed()) {
+					return;
+				}
+				display.asyncExec(new Runnable() {
+					public void run() {
+						if (table.isDisposed() || pendingSort != cancelled) {
+							return;
+						}
+						pendingSort = null;
+						if (dataSource != null) {
+							boolean changed = (modCount != startModCount || changeCount != startChangeCount);
+							applySortOrder(dataArray, sortShifts.apply(order), changed ? null : keys);
+							sortShifts.clear();
+							if (changed) {
+								// Rows came, went or changed while we sorted.  Sort again.
+								scheduleSourceResort();
+							}
+						}
+						else {
+							swapReplacedRows(dataArray);
+							if (modCount == startModCount && sortDirty.isEmpty()) {
+								applySortOrder(dataArray, order, keys);
+							}
+							else {
+								applySortOrder(data.toArray(), mergeLateRows(dataArray, order), null);
+							}
+						}
+					}
+				});
+			}
+		});
+	}
+	
+	/**
+	 * Work out which columns we're about to sort on.  A plain click sorts
+	 * on just that column, flipping its direction if it was already the
+	 * primary column.  Adding a column tacks it on as the last tie-breaker,
+	 * or flips it if it's already one of the sort columns.
+	 * 
+	 * @param tvc	Column clicked, or null for the first column.
+	 * @param addColumn	True to add to the current sort rather than replace it.
+	 */
+	private void chooseSortColumn(TableViewColumn tvc, boolean addColumn)
+	{
+		cancelPendingSort();
+		boolean reverseDirection = (tvc != null);
+		if (tvc == null)
+		{
+			tvc = columnInfo.elementAt(0);
+		}
+		if (addColumn && !sortColumns.isEmpty())
+		{
+			if (sortColumns.contains(tvc))
+			{
+				tvc.sortAscending = !tvc.sortAscending;
+			}
+			else
+			{
+				sortColumns.add(tvc);
+			}
+		}
+		else
+		{
+			if (reverseDirection && (sortColumn == tvc))
+			{
+				// Reverse sort if they resort on the currently sorting column.
+				tvc.sortAscending = !tvc.sortAscending;
+			}
+			sortColumns.clear();
+			sortColumns.add(tvc);
+		}
+		sortColumn = sortColumns.get(0);
+		dataSorted = false;
+	}
+	
+	/**
+	 * Stop any background sort that's still running.
+	 */
+	private void cancelPendingSort()
+	{
+		if (pendingSort != null)
+		{
+			pendingSort.set(true);
+			pendingSort = null;
+		}
+		sortDirty.clear();
+		sortReplaced.clear();
+		sortShifts.clear();
+	}
+	
+	/**
+	 * With a row key, new objects may have taken over rows while we sorted
+	 * in the background.  Put them in the sorted rows in place of the old
+	 * ones.  They're in sortDirty too, so they then move to where their
+	 * new values belong.  The old ones come out of sortDirty, or moving
+	 * them would put them back.
+	 * 
+	 * @param dataArray		The rows we sorted.  Updated in place.
+	 */
+	private void swapReplacedRows(Object[] dataArray)
+	{
+		if (sortReplaced.isEmpty()) {
+			return;
+		}
+		sortDirty.removeAll(sortReplaced.keySet());
+		for (int index = 0; index < dataArray.length; ++index) {
+			Object now = sortReplaced.get(dataArray[index]);
+			while (now != null) {
+				dataArray[index] = now;
+				now = sortReplaced.get(now);
+			}
+		}
+		sortReplaced.clear();
+	}
+	
+	/**
+	 * A background sort has finished, but rows were added, removed or
+	 * changed while it ran.  Work out the order of the rows as they are
+	 * now.  Rows it sorted that are still here and haven't changed keep the
+	 * order it found.  Rows removed are dropped.  Rows added or changed are
+	 * sorted among themselves and then merged in, each one where a binary
+	 * search says it belongs, so this costs one pass plus a search per row.
+	 * 
+	 * @param dataArray		The rows we sorted
+	 * @param order			The order we found, as indices into dataArray
+	 * @return The order for data as it is now: order[i] is the position of the row that belongs at i.
+	 */
+	private int[] mergeLateRows(Object[] dataArray, int[] order)
+	{
+		int size = data.size();
+		BitSet placed = new BitSet(size);
+		BitSet changed = new BitSet(size);
+		for (Object obj : sortDirty) {
+			int index = rowIndex.indexOf(obj, data);
+			if (index >= 0) {
+				changed.set(index);
+			}
+		}
+		sortDirty.clear();
+		
+		int[] sorted = new int[size];
+		int count = 0;
+		for (int index = 0; index < order.length; ++index) {
+			int pos = rowIndex.indexOf(dataArray[order[index]], data);
+			if (pos >= 0 && !changed.get(pos) && !placed.get(pos)) {
+				placed.set(pos);
+				sorted[count++] = pos;
+			}
+		}
+		
+		// Everything not placed yet arrived or changed while we sorted.
+		int[] latePositions = new int[size - count];
+		Object[] lateRows = new Object[latePositions.length];
+		int late = 0;
+		for (int pos = placed.nextClearBit(0); pos < size; pos = placed.nextClearBit(pos + 1)) {
+			latePositions[late] = pos;
+			lateRows[late++] = data.elementAt(pos);
+		}
+		int[] lateOrder = SortKeys.extract(sortColumns, lateRows).sortedOrder();
+		
+		int[] merged = new int[size];
+		int out = 0;
+		int next = 0;
+		for (int index = 0; index < lateOrder.length; ++index) {
+			Object[] keys = sortKeys(lateRows[lateOrder[index]]);
+			int low = next;
+			int high = count;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (compareToRow(keys, data.elementAt(sorted[mid])) < 0) {
+					high = mid;
+				}
+				else {
+					low = mid + 1;
+				}
+			}
+			System.arraycopy(sorted, next, merged, out, low - next);
+			out += low - next;
+			next = low;
+			merged[out++] = latePositions[lateOrder[index]];
+		}
+		System.arraycopy(sorted, next, merged, out, count - next);
+		return merged;
+	}
+	
+	/**
+	 * Are we sorting on exactly what we sorted on last time plus one more
+	 * column, with nothing changed since?  If so, the keys we kept from
+	 * last time still describe the rows.
+	 * 
+	 * @param rowCount	How many rows we're about to sort
+	 * @return True if we can just break ties.
+	 */
+	private boolean canRefineLastSort(int rowCount)
+	{
+		int prefixLength = sortColumns.size() - 1;
+		if (lastSortKeys == null || lastSortKeys.size() != rowCount || lastSortColumns.size() != prefixLength) {
+			return false;
+		}
+		for (int index = 0; index < prefixLength; ++index) {
+			if (sortColumns.get(index) != lastSortColumns.get(index)
+					|| sortColumns.get(index).sortAscending != sortedDirections[index]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Return the rows' current display order, as indices into snapshotRows().
+	 * 
+	 * @return The order.
+	 */
+	private int[] currentOrder()
+	{
+		int count = baseCount();
+		if (dataSource != null && sourceOrder != null) {
+			return Arrays.copyOf(sourceOrder, count);
+		}
+		int[] order = new int[count];
+		for (int index = 0; index < count; ++index) {
+			order[index] = index;
+		}
+		return order;
+	}
+	
+	/**
+	 * Return every row, in source order.  With a data source, the indices
+	 * into this array are the source's own.
+	 * 
+	 * @return The rows.
+	 */
+	private Object[] snapshotRows()
+	{
+		if (dataSource == null) {
+			return data.toArray();
+		}
+		Object[] rows = new Object[dataSource.size()];
+		for (int index = 0; index < rows.length; ++index) {
+			rows[index] = dataSource.get(index);
+		}
+		return rows;
+	}
+	
+	/**
+	 * Put the rows in sorted order.
+	 * 
+	 * @param dataArray		The rows as they were when we sorted them
+	 * @param order			order[i] is the index in dataArray of the row that belongs at i
+	 * @param keys			The keys we sorted by, indexed like dataArray, or null if they're out of date
+	 */
+	private void applySortOrder(Object[] dataArray, int[] order, SortKeys keys)
+	{
+		if (dataSource != null) {
+			// The keys are by source index, which doesn't change.
+			sourceOrder = order;
+			lastSortKeys = keys;
+		}
+		else {
+			for (int index = 0; index < order.length; ++index) {
+				data.set(index, dataArray[order[index]]);
+			}
+			rowIndex.invalidateFrom(0);
+			lastSortKeys = (keys != null) ? new SortKeys.PermutedKeys(keys, order) : null;
+			if (filter != null) {
+				filter.permute(order);
+			}
+			if (groups != null) {
+				groups.permute(order);
+			}
+			if (!selected.isEmpty()) {
+				RowBits.permute(selected, order);
+			}
+		}
+		lastSortColumns = new ArrayList<TableViewColumn>(sortColumns);
+		++changeCount;
+		dataSorted = true;
+		sortedDirections = sortDirections();
+		if (isLayered()) {
+			showRows();
+		}
+		else {
+			refreshRows(0);
+			showSelection();
+		}
+	}
+
+	/**
+	 * Drag and drop has completed.  Let go of the rows and anything we
+	 * made from them.
+	 * 
+	 * @param event ignored
+	 */
+	public void dragFinished(DragSourceEvent event) {
+		dragRows = null;
+		dragPayloads.clear();
+	}
+
+	/**
+	 * The drop target wants the data, in the format in event.dataType.
+	 * This is the first time we turn the rows into anything.  Some
+	 * platforms ask more than once, so we keep what we made until the
+	 * drag is over.  If there's nothing to give this format, we refuse.
+	 * 
+	 * @param event Where the data goes
+	 */
+	public void dragSetData(DragSourceEvent event) {
+		if (dragRows == null) {
+			return;
+		}
+		for (Transfer transfer : dragTransfers) {
+			if (transfer.isSupportedType(event.dataType)) {
+				Object payload = dragPayloads.get(transfer);
+				if (payload == null) {
+					payload = (dragProvider != null) ? dragProvider.dragData(transfer, dragRows) : null;
+					if (payload == null && transfer instanceof TextTransfer) {
+						payload = dragText(dragRows);
+					}
+					if (payload == null) {
+						// Nothing we could give this transfer would do.
+						event.doit = false;
+						return;
+					}
+					dragPayloads.put(transfer, payload);
+				}
+				event.data = payload;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Turn these rows into tab-separated text, one line per row.
+	 * 
+	 * @param rows	The rows
+	 * @return The text.
+	 */
+	private String dragText(List<Object> rows) {
+		StringWriter text = new StringWriter();
+		TableExport export = new TableExport(rows.toArray(), columnInfo, TableExport.FORMAT_TSV, text,
+				null, null, null, table.getDisplay());
+		export.header = false;
+		export.run();
+		return text.toString();
+	}
+
+	/**
+	 * Drag and drop has begun.  We only note which rows are going; their
+	 * data is made when somebody drops them.
+	 * 
+	 * @param event We allow it only if we have selected objects to drag.
+	 */
+	public void dragStart(DragSourceEvent event) {
+		dragPayloads.clear();
+		dragRows = getSelectedObjectsView();
+		event.doit = !dragRows.isEmpty();
+		if (!event.doit) {
+			dragRows = null;
 		}
 	}
 	
@@ -1,7 +1,9 @@
 package org.showpage.swtfoundation;
 
 import java.lang.reflect.*;
+import java.text.*;
 import java.util.*;
+import java.util.function.*;
 
 import org.eclipse.swt.*;
 
@@ -9,6 +11,19 @@ import org.eclipse.swt.*;
  * This class is used by TableView to display one column of data.
  */
 public class TableViewColumn implements Comparator<Object> {
+	public static final int	KEY_AUTO		= 0;		// Work out the sort key type from the getter / field
+	public static final int	KEY_OBJECT		= 1;		// Sort on getValue() with compareTo()
+	public static final int	KEY_INT			= 2;		// Sort on an unboxed int
+	public static final int	KEY_LONG		= 3;		// Sort on an unboxed long
+	public static final int	KEY_DOUBLE		= 4;		// Sort on an unboxed double
+	public static final int	KEY_BOOLEAN		= 5;		// Sort on an unboxed boolean, false first
+
+	public static final int	AGG_NONE		= 0;		// Group header shows nothing for this column
+	public static final int	AGG_SUM			= 1;		// Group header shows the total
+	public static final int	AGG_COUNT		= 2;		// Group header shows how many rows have a number here
+	public static final int	AGG_MIN			= 3;		// Group header shows the smallest value
+	public static final int	AGG_MAX			= 4;		// Group header shows the largest value
+
 	/** The header text for this column. */
 	public String	rowHeader;
 
@@ -30,9 +45,42 @@ public class TableViewColumn implements Comparator<Object> {
 	public Object	formatterObject;
 	public Field		field;
 	public Comparator<String>	sortComparator;
+
+	/**
+	 * For locale-aware sorting of a String column, set this rather than
+	 * sortComparator.  Sorting then turns each value into a CollationKey
+	 * once instead of re-analyzing both strings on every comparison.
+	 */
+	public Collator	sortCollator;
 	public boolean	sortAscending = true;
 	public int		alignment;
 
+	/**
+	 * What kind of key we sort on.  With KEY_AUTO, a getter or field that
+	 * returns a primitive is sorted without boxing.  Setting any of the
+	 * primitive types on a column that returns a boxed Integer, Long,
+	 * Double, Boolean and so on forces the same, with nulls still sorting
+	 * first.  The key follows the getter's type rather than the one asked
+	 * for, so a Long column gets long keys even if you ask for KEY_INT,
+	 * and a column declared as Number or Object sorts as KEY_OBJECT.
+	 * That keeps sorting in agreement with compareKeys().  A formatter,
+	 * sortComparator or sortCollator always means KEY_OBJECT.
+	 */
+	public int		keyType = KEY_AUTO;
+
+	/**
+	 * When TableView is grouped, what the group header row shows for this
+	 * column.  Only columns with an aggregate get their values totaled.
+	 */
+	public int		aggregate = AGG_NONE;
+
+	/** Compiled forms of getter/field and formatterMethod. See ColumnAccessor. */
+	private volatile ColumnAccessor	accessor;
+	private volatile ColumnAccessor	formatter;
+
+	/** Bumped whenever the getter, field or formatter changes. */
+	private volatile int			version = 0;
+
 	/**
 	 * Constructor.  TheClass should be the class that actually contains
 	 * the getter referenced by name.  In this case, we assume that theClass
@@ -87,19 +135,10 @@ public class TableViewColumn implements Comparator<Object> {
 	 */
 	public Object getValue(Object from) {
 		Object retVal = null;
+		ColumnAccessor acc = currentAccessor();
 		try {
-			if (getter != null) {
-				if (getterObject != null)
-				{
-					retVal = getter.invoke(getterObject, from);
-				}
-				else
-				{
-					retVal = getter.invoke(from);
-				}
-			}
-			else if (field != null) {
-				retVal = field.get(from);
+			if (acc != null) {
+				retVal = acc.function.apply(from);
 			}
 		}
 		catch (Exception e) {
@@ -109,7 +148,7 @@ public class TableViewColumn implements Comparator<Object> {
 		{
 			try
 			{
-				retVal = formatterMethod.invoke(formatterObject, retVal);
+				retVal = currentFormatter().function.apply(retVal);
 			}
 			catch (Exception ex)
 			{
@@ -121,6 +160,221 @@ public class TableViewColumn implements Comparator<Object> {
 		return retVal;
 	}
 
+	/**
+	 * Return the compiled getter or field accessor, building it again if
+	 * someone has changed getter, getterObject or field since last time.
+	 * 
+	 * @return The accessor, or null if we have neither getter nor field.
+	 */
+	private ColumnAccessor currentAccessor() {
+		ColumnAccessor acc = accessor;
+		Method m = getter;
+		Field f = (m == null) ? field : null;
+		Object target = (m == null) ? null : getterObject;
+		if (acc == null || !acc.matches(m, target, f)) {
+			if (m != null) {
+				acc = new ColumnAccessor(m, target);
+			}
+			else if (f != null) {
+				acc = new ColumnAccessor(f);
+			}
+			else {
+				acc = null;
+			}
+			if (accessor != null || acc != null) {
+				++version;
+			}
+			accessor = acc;
+		}
+		return acc;
+	}
+
+	/**
+	 * Return the compiled formatter, building it again if formatterMethod
+	 * or formatterObject has changed.
+	 * 
+	 * @return The formatter.
+	 */
+	private ColumnAccessor currentFormatter() {
+		ColumnAccessor acc = formatter;
+		Method m = formatterMethod;
+		Object target = formatterObject;
+		if (acc == null || !acc.matches(m, target, null)) {
+			acc = new ColumnAccessor(m, target);
+			formatter = acc;
+			++version;
+		}
+		return acc;
+	}
+
+	/**
+	 * Return the kind of key sorting should use for this column.
+	 * 
+	 * @return One of KEY_OBJECT, KEY_INT, KEY_LONG, KEY_DOUBLE or KEY_BOOLEAN.
+	 */
+	public int sortKeyType() {
+		if (sortComparator != null || sortCollator != null || (formatterMethod != null && formatterObject != null)) {
+			return KEY_OBJECT;
+		}
+		ColumnAccessor acc = currentAccessor();
+		if (acc == null || keyType == KEY_OBJECT || (keyType == KEY_AUTO && !acc.valueType.isPrimitive())) {
+			return KEY_OBJECT;
+		}
+		return keyTypeOf(acc.valueType);
+	}
+
+	/**
+	 * Return the key type that holds values of this type exactly.  Only
+	 * those sort the same unboxed as they do with compareTo().
+	 * 
+	 * @param type	What the getter or field returns
+	 * @return The key type, or KEY_OBJECT if there's no such primitive.
+	 */
+	private static int keyTypeOf(Class<?> type) {
+		if (type == int.class || type == short.class || type == byte.class || type == char.class
+				|| type == Integer.class || type == Short.class || type == Byte.class || type == Character.class) {
+			return KEY_INT;
+		}
+		if (type == long.class || type == Long.class) {
+			return KEY_LONG;
+		}
+		if (type == double.class || type == float.class || type == Double.class || type == Float.class) {
+			return KEY_DOUBLE;
+		}
+		if (type == boolean.class || type == Boolean.class) {
+			return KEY_BOOLEAN;
+		}
+		return KEY_OBJECT;
+	}
+
+	/**
+	 * Does the getter or field return a primitive, so its value is never
+	 * null?
+	 * 
+	 * @return True if so.
+	 */
+	boolean returnsPrimitive() {
+		ColumnAccessor acc = currentAccessor();
+		return acc != null && acc.valueType.isPrimitive();
+	}
+
+	/**
+	 * Retrieve this column's value as a long without boxing, if the getter
+	 * allows.  Booleans are 0 or 1.  Nulls and non-numbers are 0.
+	 * 
+	 * @param from	The object we're calling data from
+	 * @return The value.
+	 */
+	public long getLongValue(Object from) {
+		ColumnAccessor acc = currentAccessor();
+		ToLongFunction<Object> fn = (acc == null) ? null : acc.longFunction();
+		if (fn != null) {
+			try {
+				return fn.applyAsLong(from);
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+				return 0;
+			}
+		}
+		return longOf(getValue(from));
+	}
+
+	/**
+	 * Turn a value pulled from a column into a long.  Booleans are 0 or 1.
+	 * Nulls and non-numbers are 0.
+	 * 
+	 * @param val	The value
+	 * @return The long.
+	 */
+	static long longOf(Object val) {
+		if (val instanceof Boolean) {
+			return ((Boolean)val).booleanValue() ? 1 : 0;
+		}
+		if (val instanceof Character) {
+			return ((Character)val).charValue();
+		}
+		return (val instanceof Number) ? ((Number)val).longValue() : 0;
+	}
+
+	/**
+	 * Retrieve this column's value as a double without boxing, if the
+	 * getter allows.  Nulls and non-numbers are 0.
+	 * 
+	 * @param from	The object we're calling data from
+	 * @return The value.
+	 */
+	public double getDoubleValue(Object from) {
+		ColumnAccessor acc = currentAccessor();
+		ToDoubleFunction<Object> fn = (acc == null) ? null : acc.doubleFunction();
+		if (fn != null) {
+			try {
+				return fn.applyAsDouble(from);
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+				return 0;
+			}
+		}
+		Object val = getValue(from);
+		return (val instanceof Number) ? ((Number)val).doubleValue() : 0;
+	}
+
+	/**
+	 * Retrieve this column's value as a number for totaling.  We skip the
+	 * formatter, since it probably turns numbers into text.
+	 * 
+	 * @param from	The object we're calling data from
+	 * @return The value, or NaN if it's null or not a number.
+	 */
+	public double getAggregateValue(Object from) {
+		ColumnAccessor acc = currentAccessor();
+		if (acc == null) {
+			return Double.NaN;
+		}
+		try {
+			ToDoubleFunction<Object> fn = acc.doubleFunction();
+			if (fn != null) {
+				return fn.applyAsDouble(from);
+			}
+			Object val = acc.function.apply(from);
+			return (val instanceof Number) ? ((Number)val).doubleValue() : Double.NaN;
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * Return the type our getter or field returns, before any formatter.
+	 * 
+	 * @return The type, or null if we have neither getter nor field.
+	 */
+	public Class<?> valueType() {
+		ColumnAccessor acc = currentAccessor();
+		return (acc == null) ? null : acc.valueType;
+	}
+
+	/**
+	 * Return a number that changes whenever the getter, field or formatter
+	 * for this column changes, so anyone caching our values knows when to
+	 * throw them away.
+	 * 
+	 * @return The version.
+	 */
+	public int formatVersion() {
+		currentAccessor();
+		if ((formatterMethod != null) && (formatterObject != null)) {
+			currentFormatter();
+		}
+		else if (formatter != null) {
+			formatter = null;
+			++version;
+		}
+		return version;
+	}
+
 	/**
 	 * Try to look up our getter.  If not found, then grab the field.
 	 * 
@@ -138,6 +392,7 @@ public class TableViewColumn implements Comparator<Object> {
 				System.out.println("No such field / getter " + name + " for class " + getterClass.getName());
 			}
 		}
+		currentAccessor();
 	}
 
 	/**
@@ -182,37 +437,34 @@ public class TableViewColumn implements Comparator<Object> {
 	}
 
 	/**
-	 * Compare these two objects.
+	 * Compare these two objects.  A getter or field that returns a primitive
+	 * is compared without boxing, as sorting a TableView does.
 	 * 
 	 * @param arg1	First object
 	 * @param arg2	Second object
 	 */
-	@SuppressWarnings("unchecked")
 	public int compare(Object arg1, Object arg2) {
-		int retVal = 0;
-		Object o1 = getValue(arg1);
-		Object o2 = getValue(arg2);
+		int retVal;
+		ColumnAccessor acc = unboxedAccessor();
 
-		Comparable c1 = (Comparable)o1;
-		Comparable c2 = (Comparable)o2;
-
-		if (sortComparator != null)
-		{
-			retVal = sortComparator.compare((String)o1, (String)o2);
+		if (acc == null) {
+			retVal = compareValues(getValue(arg1), getValue(arg2), stringComparator());
 		}
-		else
-		{
-			if ((arg1 == null) || (arg2 == null)) {
-				if (arg1 == arg2) {
-					return 0;
+		else {
+			try {
+				if (acc.valueType == double.class || acc.valueType == float.class) {
+					ToDoubleFunction<Object> fn = acc.doubleFunction();
+					retVal = Double.compare(fn.applyAsDouble(arg1), fn.applyAsDouble(arg2));
 				}
-				if (arg1 == null) {
-					return -1;
+				else {
+					ToLongFunction<Object> fn = acc.longFunction();
+					retVal = Long.compare(fn.applyAsLong(arg1), fn.applyAsLong(arg2));
 				}
-				return 1;
 			}
-
-			retVal = c1.compareTo(c2);
+			catch (Exception e) {
+				// getValue() reports the problem, and the bad value sorts as null.
+				retVal = compareValues(getValue(arg1), getValue(arg2), null);
+			}
 		}
 
 		if (!sortAscending) {
@@ -221,6 +473,102 @@ public class TableViewColumn implements Comparator<Object> {
 		return retVal;
 	}
 
+	/**
+	 * Return our accessor if compare() can skip boxing: no formatter or
+	 * comparator, KEY_AUTO, and a getter or field with unboxed versions.
+	 * 
+	 * @return The accessor, or null to compare boxed values.
+	 */
+	private ColumnAccessor unboxedAccessor() {
+		if (keyType != KEY_AUTO || sortComparator != null || sortCollator != null
+				|| (formatterMethod != null && formatterObject != null)) {
+			return null;
+		}
+		ColumnAccessor acc = currentAccessor();
+		if (acc == null || !acc.valueType.isPrimitive()) {
+			return null;
+		}
+		boolean isDouble = (acc.valueType == double.class || acc.valueType == float.class);
+		if ((isDouble ? acc.doubleFunction() : acc.longFunction()) == null) {
+			return null;
+		}
+		return acc;
+	}
+
+	/**
+	 * Compare two values already pulled from this column, honoring our
+	 * sort direction and comparator.
+	 * 
+	 * @param o1	First value
+	 * @param o2	Second value
+	 * @return Negative, zero or positive.
+	 */
+	public int compareKeys(Object o1, Object o2) {
+		int retVal = compareValues(o1, o2, stringComparator());
+		return sortAscending ? retVal : -retVal;
+	}
+
+	/**
+	 * Return the Collator we sort with, if any.  That's sortCollator, or
+	 * sortComparator if somebody has cast a Collator into it.
+	 * 
+	 * @return The Collator, or null.
+	 */
+	public Collator collator() {
+		if (sortCollator != null) {
+			return sortCollator;
+		}
+		Object comparator = sortComparator;
+		return (comparator instanceof Collator) ? (Collator) comparator : null;
+	}
+
+	/**
+	 * Return the comparator to use for String values, if any.
+	 * 
+	 * @return sortComparator, or sortCollator, or null.
+	 */
+	@SuppressWarnings("unchecked")
+	Comparator<String> stringComparator() {
+		if (sortComparator != null) {
+			return sortComparator;
+		}
+		if (sortCollator != null) {
+			// Collator is a Comparator<Object> that expects Strings.
+			return (Comparator<String>) (Comparator<?>) sortCollator;
+		}
+		return null;
+	}
+
+	/**
+	 * Compare two values pulled from this column, ignoring sort direction.
+	 * Nulls sort first.  Doubles and Floats compare the way Double.compare()
+	 * does, with NaN after everything else, which is how SortKeys sorts
+	 * them unboxed.
+	 * 
+	 * @param o1			First value
+	 * @param o2			Second value
+	 * @param comparator	If non-null, the values are Strings compared with this.
+	 * @return Negative, zero or positive.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static int compareValues(Object o1, Object o2, Comparator<String> comparator) {
+		if ((o1 == null) || (o2 == null)) {
+			if (o1 == o2) {
+				return 0;
+			}
+			if (o1 == null) {
+				return -1;
+			}
+			return 1;
+		}
+
+		if (comparator != null)
+		{
+			return comparator.compare((String)o1, (String)o2);
+		}
+		return ((Comparable)o1).compareTo(o2);
+	}
+
 	/**
 	 * Return an int only if obj is a non-null Number
 	 * 
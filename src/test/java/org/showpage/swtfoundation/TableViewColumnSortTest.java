@@ -0,0 +1,176 @@
+package org.showpage.swtfoundation;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Checks that TableViewColumn's compiled accessors sort the same way the
+ * old Method.invoke() comparisons did.  We sort the same rows three ways:
+ * with reflection on both sides of every comparison, with
+ * TableViewColumn.compare(), and with the SortKeys that TableView sorts
+ * with.  All three must come out in the same order.
+ *
+ * The timings live in src/benchmark, in TableViewSortBenchmark.
+ */
+public class TableViewColumnSortTest {
+	private static final int	ROWS = 20000;
+
+	/**
+	 * One row of the table.
+	 */
+	public static class Row {
+		public double	price;
+		public String	symbol;
+		public int		volume;
+
+		public Row(double _price, String _symbol, int _volume) {
+			price = _price;
+			symbol = _symbol;
+			volume = _volume;
+		}
+
+		public double getPrice() { return price; }
+	}
+
+	/**
+	 * Stands in for the window that holds a table whose getters live on
+	 * the window rather than on the rows.
+	 */
+	public static class Controller {
+		public String symbolFor(Row row) { return row.symbol; }
+	}
+
+	/**
+	 * Sort on a double getter.
+	 */
+	@Test
+	public void sortByGetter() throws Exception {
+		Row[] rows = makeRows(ROWS);
+		TableViewColumn column = new TableViewColumn("Price", "price", Row.class);
+		assertNotNull(column.getter);
+
+		checkSorts(rows, column, reflectionComparator(column.getter, null));
+	}
+
+	/**
+	 * Sort on a getter that lives on a controller object, as with the
+	 * getterObject constructor.
+	 */
+	@Test
+	public void sortByControllerGetter() throws Exception {
+		Row[] rows = makeRows(ROWS);
+		Controller controller = new Controller();
+		TableViewColumn column = new TableViewColumn("Symbol", "symbolFor", controller, Controller.class, Row.class);
+		assertNotNull(column.getter);
+		assertSame(controller, column.getterObject);
+
+		checkSorts(rows, column, reflectionComparator(column.getter, controller));
+	}
+
+	/**
+	 * Sort on a public int field with no getter.  There are lots of ties,
+	 * so this also checks we leave equal rows where they were.
+	 */
+	@Test
+	public void sortByField() throws Exception {
+		Row[] rows = makeRows(ROWS);
+		TableViewColumn column = new TableViewColumn("Volume", "volume", Row.class);
+		assertNull(column.getter);
+		assertNotNull(column.field);
+
+		final Field field = column.field;
+		checkSorts(rows, column, new Comparator<Object>() {
+			@SuppressWarnings({ "unchecked", "rawtypes" })
+			public int compare(Object o1, Object o2) {
+				try {
+					return ((Comparable) field.get(o1)).compareTo(field.get(o2));
+				}
+				catch (IllegalAccessException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Build some rows.  The seed is fixed so runs can be compared.
+	 *
+	 * @param count		How many rows
+	 * @return The rows.
+	 */
+	private static Row[] makeRows(int count) {
+		Random random = new Random(42);
+		Row[] rows = new Row[count];
+		for (int index = 0; index < count; ++index) {
+			rows[index] = new Row(random.nextDouble() * 1000.0, "S" + random.nextInt(count), random.nextInt(1000));
+		}
+		return rows;
+	}
+
+	/**
+	 * The comparison TableViewColumn used to make: call the getter with
+	 * reflection for both rows and compare the boxed values.
+	 *
+	 * @param getter	The getter
+	 * @param target	The object to call it on, or null to call it on the row.
+	 * @return The comparator.
+	 */
+	private static Comparator<Object> reflectionComparator(final Method getter, final Object target) {
+		return new Comparator<Object>() {
+			@SuppressWarnings({ "unchecked", "rawtypes" })
+			public int compare(Object o1, Object o2) {
+				try {
+					Object v1 = (target == null) ? getter.invoke(o1) : getter.invoke(target, o1);
+					Object v2 = (target == null) ? getter.invoke(o2) : getter.invoke(target, o2);
+					return ((Comparable) v1).compareTo(v2);
+				}
+				catch (IllegalAccessException | InvocationTargetException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Sort the rows the old way, with compare(), and with SortKeys, and
+	 * check they agree.
+	 *
+	 * @param rows			The rows, left alone
+	 * @param column		The column to sort on
+	 * @param reflection	The old way of comparing
+	 */
+	private static void checkSorts(Row[] rows, TableViewColumn column, Comparator<Object> reflection) {
+		Row[] before = rows.clone();
+		Arrays.sort(before, reflection);
+
+		Row[] compared = rows.clone();
+		Arrays.sort(compared, column);
+		assertSameOrder(before, compared);
+
+		int[] order = SortKeys.extract(column, rows).sortedOrder();
+		Row[] keyed = new Row[order.length];
+		for (int index = 0; index < order.length; ++index) {
+			keyed[index] = rows[order[index]];
+		}
+		assertSameOrder(before, keyed);
+	}
+
+	/**
+	 * All the sorts are stable, so they should agree row for row.
+	 *
+	 * @param expected	The old way
+	 * @param actual	The new way
+	 */
+	private static void assertSameOrder(Row[] expected, Row[] actual) {
+		assertEquals(expected.length, actual.length);
+		for (int index = 0; index < expected.length; ++index) {
+			if (expected[index] != actual[index]) {
+				fail("Sorts differ at row " + index);
+			}
+		}
+	}
+}